@@ -23,6 +23,7 @@ public final class R {
         public static final int new_devices=0x7f060005;
         public static final int paired_devices=0x7f060003;
         public static final int scan=0x7f06000f;
+        public static final int send_file=0x7f060011;
         public static final int status_log=0x7f06000e;
         public static final int textView1=0x7f060009;
         public static final int title_conversation=0x7f06000b;
@@ -50,6 +51,7 @@ public final class R {
          */
         public static final int connect=0x7f04000e;
         public static final int discoverable=0x7f04000f;
+        public static final int file_not_readable=0x7f040012;
         public static final int none_found=0x7f04000a;
         public static final int none_paired=0x7f040009;
         public static final int not_connected=0x7f040002;
@@ -60,6 +62,7 @@ public final class R {
         /**   BluetoothChat 
          */
         public static final int send=0x7f040001;
+        public static final int send_file=0x7f040011;
         public static final int title_connected_to=0x7f040005;
         public static final int title_connecting=0x7f040004;
         public static final int title_not_connected=0x7f040006;
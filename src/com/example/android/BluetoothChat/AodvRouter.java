@@ -0,0 +1,652 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * On-demand (AODV style) routing. Keeps the {@link RoutingTable}, answers
+ * and forwards route requests, and buffers chat messages while a route is
+ * being discovered. Route requests search an expanding ring, so the
+ * common nearby destinations are found without flooding the whole mesh.
+ * Routes minimize the sum of the {@link LinkQuality} link metrics rather
+ * than the hop count.
+ * <p>
+ * Routes are also learned from chat traffic that is sent anyway: data
+ * packets carry the sender's freshest routes, and every packet leaves
+ * routes to its originator and to the nodes it passed through.
+ * <p>
+ * Each route remembers its precursors, the neighbors that send traffic
+ * along it. When a link breaks only they get a RERR, and a node close
+ * enough to the destination first tries to repair the route with a small
+ * route request of its own.
+ */
+public class AodvRouter implements MeshRouter {
+    // Debugging
+    private static final String TAG = "AodvRouter";
+    private static final boolean D = true;
+
+    // How long a route stays usable without traffic. Much longer than the
+    // RFC default, every rediscovery costs a Bluetooth inquiry.
+    public static final long ACTIVE_ROUTE_TIMEOUT = 5 * 60 * 1000;
+    // Lifetime of a route to a neighbor seen by inquiry
+    public static final long NEIGHBOR_ROUTE_TIMEOUT = 2 * 60 * 1000;
+    // How long a packet takes across one hop; usually a connect of a few seconds
+    public static final long NODE_TRAVERSAL_TIME = 2 * 1000;
+    // Most hops a route request travels
+    public static final int NET_DIAMETER = 8;
+    // How long to wait for a RREP to a network-wide RREQ
+    public static final long NET_TRAVERSAL_TIME = 2 * NODE_TRAVERSAL_TIME * NET_DIAMETER;
+    // Expanding ring search: the first RREQ only reaches the neighbors, each
+    // timeout widens the ring, and past TTL_THRESHOLD the whole network is asked
+    public static final int TTL_START = 1;
+    public static final int TTL_INCREMENT = 2;
+    public static final int TTL_THRESHOLD = 5;
+    // Extra hops of waiting allowed for on each ring
+    private static final int TIMEOUT_BUFFER = 2;
+    // How many times a network-wide RREQ is repeated before the destination is given up
+    public static final int RREQ_RETRIES = 2;
+    // How long a (originator, RREQ id) pair is remembered to drop duplicates
+    private static final long PATH_DISCOVERY_TIME = 2 * NET_TRAVERSAL_TIME;
+    // Messages buffered per destination while discovering a route
+    private static final int MAX_BUFFERED = 32;
+    // Local repair: only routes to destinations at most MAX_REPAIR_TTL hops
+    // away are repaired, with a RREQ reaching LOCAL_ADD_TTL hops further
+    public static final int MAX_REPAIR_TTL = 3;
+    public static final int LOCAL_ADD_TTL = 2;
+    // Most routes piggybacked on one data packet, this node included
+    private static final int GOSSIP_ENTRIES = 8;
+
+    // A route discovery in progress
+    private static class Discovery {
+        // TTL of the last RREQ, the ring searched
+        int ttl;
+        // A local repair of a broken route, tried once
+        boolean repair;
+        int retries;
+        long deadline;
+    }
+
+    private final String mLocalName;
+    private final Callbacks mCallbacks;
+    private final LinkQuality mLinkQuality;
+    private final RoutingTable mTable = new RoutingTable();
+
+    // Own sequence number and the last RREQ id and message number used
+    private int mSeq = 1;
+    private int mRreqId;
+    private int mMessageId;
+
+    private final SeenCache mSeenRreqs = new SeenCache(64, 4096);
+    private final HashMap<String, List<MeshPacket>> mBuffered = new HashMap<String, List<MeshPacket>>();
+    private final HashMap<String, Discovery> mDiscoveries = new HashMap<String, Discovery>();
+
+    /**
+     * @param localName  Name of this node, as other nodes address it
+     * @param callbacks  Receives outgoing packets and routing results
+     */
+    public AodvRouter(String localName, Callbacks callbacks) {
+        this(localName, callbacks, null);
+    }
+
+    /**
+     * @param localName  Name of this node, as other nodes address it
+     * @param callbacks  Receives outgoing packets and routing results
+     * @param linkQuality  Link estimates to weigh routes by, or null to
+     *                     count hops only
+     */
+    public AodvRouter(String localName, Callbacks callbacks, LinkQuality linkQuality) {
+        mLocalName = localName;
+        mCallbacks = callbacks;
+        mLinkQuality = linkQuality;
+        // Neighbors remember flooded ids for a while; ids from before a
+        // restart must not make new packets look like duplicates
+        mRreqId = (int) (System.currentTimeMillis() / 1000);
+        mMessageId = mRreqId;
+    }
+
+    public String getLocalName() {
+        return mLocalName;
+    }
+
+    public RoutingTable getRoutingTable() {
+        return mTable;
+    }
+
+    /**
+     * Return a usable route to the destination, or null.
+     */
+    public RouteEntry findRoute(String destination, long now) {
+        return mTable.lookup(destination, now);
+    }
+
+    /**
+     * Record a neighbor found by inquiry or by an incoming connection.
+     * @param name  The neighbor's node name
+     * @param address  The neighbor's link address
+     */
+    public void neighborSeen(String name, String address, long now) {
+        if (name == null || name.equals(mLocalName)) return;
+        mTable.update(name, address, 1, MeshPacket.SEQ_UNKNOWN, linkMetric(address),
+                NEIGHBOR_ROUTE_TIMEOUT, now);
+    }
+
+    /**
+     * A link to a neighbor was opened; it counts as a route to the neighbor.
+     */
+    public void linkUp(String name, String address, long now) {
+        neighborSeen(name, address, now);
+    }
+
+    /**
+     * Nothing to do: routes outlive idle links, the next packet reconnects.
+     */
+    public void linkDown(String address, long now) {
+    }
+
+    private int linkMetric(String address) {
+        return mLinkQuality == null ? LinkQuality.METRIC_SCALE : mLinkQuality.getMetric(address);
+    }
+
+    /**
+     * Send a chat message. If a fresh route exists the packet goes out at
+     * once; otherwise it is buffered until requestRoute() finds one.
+     * @return  true if the message was sent, false if it was buffered
+     */
+    public boolean sendData(String destination, byte[] payload, long now) {
+        MeshPacket packet = new MeshPacket(MeshPacket.TYPE_DATA, mLocalName, destination);
+        packet.originatorSeq = mSeq;
+        packet.id = ++mMessageId;
+        packet.payload = payload;
+
+        RouteEntry route = mTable.lookup(destination, now);
+        if (route != null) {
+            mTable.refresh(destination, ACTIVE_ROUTE_TIMEOUT, now);
+            sendData(route.nextHop, packet, now);
+            return true;
+        }
+
+        buffer(packet);
+        return false;
+    }
+
+    private void buffer(MeshPacket packet) {
+        List<MeshPacket> buffered = mBuffered.get(packet.destination);
+        if (buffered == null) {
+            buffered = new ArrayList<MeshPacket>();
+            mBuffered.put(packet.destination, buffered);
+        }
+        if (buffered.size() >= MAX_BUFFERED) buffered.remove(0);
+        buffered.add(packet);
+    }
+
+    /**
+     * Send a packet that was already built, e.g. one kept in the message
+     * store, along a fresh route. Nothing is buffered if there is no route.
+     * @return  true if the packet was sent
+     */
+    public boolean resend(MeshPacket packet, long now) {
+        RouteEntry route = mTable.lookup(packet.destination, now);
+        if (route == null) return false;
+        mTable.refresh(packet.destination, ACTIVE_ROUTE_TIMEOUT, now);
+        sendData(route.nextHop, packet, now);
+        return true;
+    }
+
+    /**
+     * Return the destinations that have messages waiting for a route.
+     */
+    public List<String> getPendingDestinations() {
+        return new ArrayList<String>(mBuffered.keySet());
+    }
+
+    /**
+     * Find a route for buffered messages. If the neighbor routes already
+     * cover the destination the messages go out at once, otherwise a RREQ
+     * is broadcast unless one is already outstanding.
+     */
+    public void requestRoute(String destination, long now) {
+        RouteEntry route = mTable.lookup(destination, now);
+        if (route != null) {
+            flushBuffered(destination, route, now);
+            return;
+        }
+        if (mDiscoveries.containsKey(destination)) return;
+
+        Discovery discovery = new Discovery();
+        // Start where the destination was last seen, if it ever was
+        RouteEntry old = mTable.get(destination);
+        discovery.ttl = old != null ? old.hopCount + TTL_INCREMENT : TTL_START;
+        if (discovery.ttl > TTL_THRESHOLD) discovery.ttl = NET_DIAMETER;
+        mDiscoveries.put(destination, discovery);
+        sendRreq(destination, discovery, now);
+    }
+
+    private void sendRreq(String destination, Discovery discovery, long now) {
+        MeshPacket rreq = new MeshPacket(MeshPacket.TYPE_RREQ, mLocalName, destination);
+        rreq.originatorSeq = ++mSeq;
+        rreq.id = ++mRreqId;
+        RouteEntry old = mTable.get(destination);
+        rreq.destinationSeq = old != null ? old.seq : MeshPacket.SEQ_UNKNOWN;
+        rreq.ttl = discovery.ttl;
+        mSeenRreqs.add(rreq.getFloodKey(), now + PATH_DISCOVERY_TIME, now);
+
+        discovery.deadline = now + (discovery.ttl < NET_DIAMETER
+                ? 2 * NODE_TRAVERSAL_TIME * (discovery.ttl + TIMEOUT_BUFFER)
+                : NET_TRAVERSAL_TIME);
+        if (D) Log.d(TAG, "RREQ for " + destination + " id=" + rreq.id + " ttl=" + rreq.ttl);
+        mCallbacks.broadcastPacket(rreq);
+    }
+
+    /**
+     * Process a packet received from a neighbor.
+     * @param fromAddress  Link address of the neighbor that sent it
+     * @param fromName  Node name of that neighbor, if known
+     */
+    public void handlePacket(MeshPacket packet, String fromAddress, String fromName, long now) {
+        if (D) Log.d(TAG, "received " + packet + " from " + fromName);
+        // A RREP carries the requesting node as its originator and a RERR
+        // the node reporting it, so only data and requests can loop back
+        if (packet.originator.equals(mLocalName)
+                && (packet.type == MeshPacket.TYPE_DATA || packet.type == MeshPacket.TYPE_RREQ)) {
+            // Our own packet came back around a loop
+            return;
+        }
+        neighborSeen(fromName, fromAddress, now);
+        if (packet.type != MeshPacket.TYPE_RERR) learnPath(packet, fromAddress, now);
+
+        switch (packet.type) {
+        case MeshPacket.TYPE_DATA:
+            if (packet.gossip != null) mergeGossip(packet.gossip, fromAddress, now);
+            handleData(packet, fromAddress, now);
+            break;
+        case MeshPacket.TYPE_RREQ:
+            handleRreq(packet, fromAddress, now);
+            break;
+        case MeshPacket.TYPE_RREP:
+            handleRrep(packet, fromAddress, now);
+            break;
+        case MeshPacket.TYPE_RERR:
+            handleRerr(packet, fromAddress, now);
+            break;
+        }
+    }
+
+    private void handleData(MeshPacket packet, String fromAddress, long now) {
+        // The path the packet came over is a route back to its originator
+        int metric = packet.metric + linkMetric(fromAddress);
+        mTable.update(packet.originator, fromAddress, packet.hopCount + 1, packet.originatorSeq,
+                metric, ACTIVE_ROUTE_TIMEOUT, now);
+        mTable.refresh(packet.originator, ACTIVE_ROUTE_TIMEOUT, now);
+
+        if (packet.destination.equals(mLocalName)) {
+            mCallbacks.deliverPacket(packet);
+            return;
+        }
+
+        RouteEntry route = mTable.lookup(packet.destination, now);
+        if (route == null && packet.ttl > 1 && isRepairing(packet.destination)) {
+            // Held until the repair finds a new route or gives up
+            MeshPacket copy = forwardCopy(packet);
+            copy.metric = metric;
+            buffer(copy);
+            return;
+        }
+        if (route == null || packet.ttl <= 1) {
+            // Tell the originator its route through us is gone
+            if (D) Log.d(TAG, "no route to forward " + packet);
+            sendRerr(packet.destination, fromAddress, now);
+            ArrayList<MeshPacket> undelivered = new ArrayList<MeshPacket>();
+            undelivered.add(forwardCopy(packet));
+            mCallbacks.routeFailed(packet.destination, undelivered);
+            return;
+        }
+        mTable.refresh(packet.destination, ACTIVE_ROUTE_TIMEOUT, now);
+        // Both directions now carry traffic for the neighbors at either end
+        mTable.addPrecursor(packet.destination, fromAddress);
+        mTable.addPrecursor(packet.originator, route.nextHop);
+        MeshPacket copy = forwardCopy(packet);
+        copy.metric = metric;
+        sendData(route.nextHop, copy, now);
+    }
+
+    /**
+     * Learn routes to the nodes a packet was forwarded by: each is as many
+     * hops away as it is from the end of the path, via the neighbor that
+     * handed the packet over. Their sequence numbers are not known, so the
+     * table only takes these routes where they are shorter than what it has.
+     */
+    private void learnPath(MeshPacket packet, String fromAddress, long now) {
+        // A packet that went around a loop says nothing useful
+        if (packet.path.contains(mLocalName)) return;
+        int linkMetric = linkMetric(fromAddress);
+        int length = packet.path.size();
+        // The last hop is the neighbor itself, neighborSeen() covers it
+        for (int i = 0; i < length - 1; i++) {
+            int hopCount = length - i;
+            mTable.update(packet.path.get(i), fromAddress, hopCount, MeshPacket.SEQ_UNKNOWN,
+                    linkMetric + (hopCount - 1) * LinkQuality.METRIC_SCALE,
+                    NEIGHBOR_ROUTE_TIMEOUT, now);
+        }
+    }
+
+    private void handleRreq(MeshPacket rreq, String fromAddress, long now) {
+        boolean first = mSeenRreqs.add(rreq.getFloodKey(), now + PATH_DISCOVERY_TIME, now);
+
+        // Reverse route to the originator, used by the RREP. Later copies
+        // of the request only matter if they came over a better path.
+        int metric = rreq.metric + linkMetric(fromAddress);
+        boolean better = mTable.update(rreq.originator, fromAddress, rreq.hopCount + 1,
+                rreq.originatorSeq, metric, 2 * NET_TRAVERSAL_TIME, now);
+        if (!first) {
+            // The destination answers again so the originator can switch
+            // to the better path; intermediate nodes do not re-flood
+            if (better && rreq.destination.equals(mLocalName)) {
+                sendRrep(rreq, mSeq, 0, 0, fromAddress);
+            }
+            return;
+        }
+
+        if (rreq.destination.equals(mLocalName)) {
+            if (rreq.destinationSeq != MeshPacket.SEQ_UNKNOWN
+                    && MeshPacket.isNewer(rreq.destinationSeq, mSeq)) {
+                mSeq = rreq.destinationSeq;
+            }
+            mSeq++;
+            sendRrep(rreq, mSeq, 0, 0, fromAddress);
+            return;
+        }
+
+        RouteEntry route = mTable.lookup(rreq.destination, now);
+        if (route != null && route.seq != MeshPacket.SEQ_UNKNOWN
+                && (rreq.destinationSeq == MeshPacket.SEQ_UNKNOWN
+                        || !MeshPacket.isNewer(rreq.destinationSeq, route.seq))) {
+            // Intermediate node with a fresh enough route answers for the destination
+            mTable.addPrecursor(rreq.destination, fromAddress);
+            mTable.addPrecursor(rreq.originator, route.nextHop);
+            sendRrep(rreq, route.seq, route.hopCount, route.metric, fromAddress);
+            return;
+        }
+
+        if (rreq.ttl > 1) {
+            MeshPacket copy = forwardCopy(rreq);
+            copy.metric = metric;
+            mCallbacks.broadcastPacket(copy);
+        }
+    }
+
+    private void sendRrep(MeshPacket rreq, int destinationSeq, int hopCount, int metric,
+            String toAddress) {
+        MeshPacket rrep = new MeshPacket(MeshPacket.TYPE_RREP, rreq.originator, rreq.destination);
+        rrep.originatorSeq = rreq.originatorSeq;
+        rrep.destinationSeq = destinationSeq;
+        rrep.hopCount = hopCount;
+        rrep.metric = metric;
+        rrep.id = rreq.id;
+        if (D) Log.d(TAG, "RREP " + rrep);
+        mCallbacks.sendPacket(toAddress, rrep);
+    }
+
+    private void handleRrep(MeshPacket rrep, String fromAddress, long now) {
+        // Forward route to the destination the RREP answers for
+        int metric = rrep.metric + linkMetric(fromAddress);
+        mTable.update(rrep.destination, fromAddress, rrep.hopCount + 1, rrep.destinationSeq,
+                metric, ACTIVE_ROUTE_TIMEOUT, now);
+
+        if (rrep.originator.equals(mLocalName)) {
+            // A second reply over a better path only updates the table
+            if (!mDiscoveries.containsKey(rrep.destination)
+                    && !mBuffered.containsKey(rrep.destination)) {
+                return;
+            }
+            RouteEntry route = mTable.lookup(rrep.destination, now);
+            if (route != null) flushBuffered(rrep.destination, route, now);
+            return;
+        }
+
+        RouteEntry reverse = mTable.lookup(rrep.originator, now);
+        if (reverse == null) {
+            if (D) Log.d(TAG, "no reverse route for " + rrep);
+            return;
+        }
+        mTable.addPrecursor(rrep.destination, reverse.nextHop);
+        mTable.addPrecursor(rrep.originator, fromAddress);
+        MeshPacket copy = forwardCopy(rrep);
+        copy.metric = metric;
+        mCallbacks.sendPacket(reverse.nextHop, copy);
+    }
+
+    private void handleRerr(MeshPacket rerr, String fromAddress, long now) {
+        RouteEntry route = mTable.get(rerr.destination);
+        if (route == null || !route.valid || !fromAddress.equals(route.nextHop)) return;
+        if (rerr.destinationSeq != MeshPacket.SEQ_UNKNOWN
+                && MeshPacket.isNewer(route.seq, rerr.destinationSeq)) {
+            return;
+        }
+        mTable.invalidate(rerr.destination, now);
+        if (rerr.destinationSeq != MeshPacket.SEQ_UNKNOWN) route.seq = rerr.destinationSeq;
+        // Pass it on to the nodes that sent traffic along the route
+        reportBroken(route);
+    }
+
+    /**
+     * Send a RERR for a broken route to each of its precursors.
+     */
+    private void reportBroken(RouteEntry route) {
+        List<String> precursors = mTable.getPrecursors(route.destination);
+        if (precursors.isEmpty()) return;
+        MeshPacket rerr = new MeshPacket(MeshPacket.TYPE_RERR, mLocalName, route.destination);
+        rerr.destinationSeq = route.seq;
+        rerr.ttl = 1;
+        for (String precursor : precursors) {
+            mCallbacks.sendPacket(precursor, rerr);
+        }
+    }
+
+    private void sendRerr(String unreachable, String toAddress, long now) {
+        RouteEntry route = mTable.invalidate(unreachable, now);
+        MeshPacket rerr = new MeshPacket(MeshPacket.TYPE_RERR, mLocalName, unreachable);
+        rerr.destinationSeq = route != null ? route.seq : MeshPacket.SEQ_UNKNOWN;
+        rerr.ttl = 1;
+        mCallbacks.sendPacket(toAddress, rerr);
+    }
+
+    /**
+     * The link to a neighbor failed. Routes through it are invalidated.
+     * Where other nodes route through this one, a route to a nearby
+     * destination is repaired locally, and the precursors of the others
+     * are told with a RERR.
+     */
+    public void linkBroken(String address, long now) {
+        mTable.removePrecursor(address);
+        for (RouteEntry route : mTable.invalidateNextHop(address, now)) {
+            if (D) Log.d(TAG, "route broken: " + route);
+            if (mTable.getPrecursors(route.destination).isEmpty()) continue;
+            if (route.hopCount <= MAX_REPAIR_TTL && !mDiscoveries.containsKey(route.destination)) {
+                Discovery discovery = new Discovery();
+                discovery.repair = true;
+                discovery.ttl = route.hopCount + LOCAL_ADD_TTL;
+                mDiscoveries.put(route.destination, discovery);
+                if (D) Log.d(TAG, "repairing route to " + route.destination);
+                sendRreq(route.destination, discovery, now);
+            } else {
+                reportBroken(route);
+            }
+        }
+    }
+
+    private boolean isRepairing(String destination) {
+        Discovery discovery = mDiscoveries.get(destination);
+        return discovery != null && discovery.repair;
+    }
+
+    /**
+     * Advance timers: widen, retry or give up route discoveries and expire routes.
+     */
+    public void tick(long now) {
+        mTable.purge(now);
+
+        mSeenRreqs.purge(now);
+
+        Iterator<Map.Entry<String, Discovery>> it = mDiscoveries.entrySet().iterator();
+        ArrayList<String> retry = new ArrayList<String>();
+        while (it.hasNext()) {
+            Map.Entry<String, Discovery> entry = it.next();
+            Discovery discovery = entry.getValue();
+            if (now < discovery.deadline) continue;
+            if (discovery.repair) {
+                // The repair failed, now the nodes upstream have to know
+                it.remove();
+                RouteEntry route = mTable.get(entry.getKey());
+                if (route != null) reportBroken(route);
+                List<MeshPacket> undelivered = mBuffered.remove(entry.getKey());
+                if (undelivered == null) undelivered = new ArrayList<MeshPacket>();
+                mCallbacks.routeFailed(entry.getKey(), undelivered);
+            } else if (discovery.ttl < NET_DIAMETER) {
+                // Widen the ring
+                discovery.ttl += TTL_INCREMENT;
+                if (discovery.ttl > TTL_THRESHOLD) discovery.ttl = NET_DIAMETER;
+                retry.add(entry.getKey());
+            } else if (discovery.retries < RREQ_RETRIES) {
+                discovery.retries++;
+                retry.add(entry.getKey());
+            } else {
+                it.remove();
+                List<MeshPacket> undelivered = mBuffered.remove(entry.getKey());
+                if (undelivered == null) undelivered = new ArrayList<MeshPacket>();
+                mCallbacks.routeFailed(entry.getKey(), undelivered);
+            }
+        }
+        for (String destination : retry) {
+            sendRreq(destination, mDiscoveries.get(destination), now);
+        }
+    }
+
+    private void flushBuffered(String destination, RouteEntry route, long now) {
+        mDiscoveries.remove(destination);
+        List<MeshPacket> buffered = mBuffered.remove(destination);
+        if (buffered != null) {
+            for (MeshPacket packet : buffered) {
+                sendData(route.nextHop, packet, now);
+            }
+            mTable.refresh(destination, ACTIVE_ROUTE_TIMEOUT, now);
+        }
+        mCallbacks.routeFound(destination, route);
+    }
+
+    private void sendData(String nextHop, MeshPacket packet, long now) {
+        packet.gossip = buildGossip(nextHop, now);
+        mCallbacks.sendPacket(nextHop, packet);
+    }
+
+    /**
+     * Encode this node and its most recently updated routes for a
+     * neighbor. Routes through the neighbor itself are left out, and so
+     * are routes without a destination sequence number other than to
+     * direct neighbors: only sequence numbers keep learned routes from
+     * forming loops.
+     */
+    private byte[] buildGossip(String nextHop, long now) {
+        ArrayList<RouteEntry> routes = new ArrayList<RouteEntry>();
+        for (RouteEntry route : mTable.getRoutes()) {
+            if (!route.isFresh(now) || nextHop.equals(route.nextHop)) continue;
+            if (route.seq == MeshPacket.SEQ_UNKNOWN && route.hopCount > 1) continue;
+            routes.add(route);
+        }
+        Collections.sort(routes, new Comparator<RouteEntry>() {
+            public int compare(RouteEntry a, RouteEntry b) {
+                return a.updated < b.updated ? 1 : a.updated > b.updated ? -1 : 0;
+            }
+        });
+        int count = Math.min(routes.size(), GOSSIP_ENTRIES - 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * (count + 1));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(count + 1);
+            writeGossip(out, mLocalName, 0, mSeq, 0);
+            for (int i = 0; i < count; i++) {
+                RouteEntry route = routes.get(i);
+                writeGossip(out, route.destination, route.hopCount, route.seq, route.metric);
+            }
+        } catch (IOException e) {
+            // Cannot happen when writing to a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeGossip(DataOutputStream out, String destination, int hopCount,
+            int seq, int metric) throws IOException {
+        out.writeUTF(destination);
+        out.writeByte(Math.min(hopCount, 0xff));
+        out.writeInt(seq);
+        out.writeShort(Math.min(metric, 0xffff));
+    }
+
+    /**
+     * Take routes a neighbor piggybacked on a data packet, as if each came
+     * in a RREP from it, and send buffered messages that have a route now.
+     */
+    private void mergeGossip(byte[] gossip, String fromAddress, long now) {
+        int linkMetric = linkMetric(fromAddress);
+        boolean changed = false;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(gossip));
+        try {
+            int count = in.readUnsignedByte();
+            for (int i = 0; i < count; i++) {
+                String destination = in.readUTF();
+                int hopCount = in.readUnsignedByte();
+                int seq = in.readInt();
+                int metric = in.readUnsignedShort();
+                if (destination.equals(mLocalName)) continue;
+                if (seq == MeshPacket.SEQ_UNKNOWN && hopCount > 1) continue;
+                changed |= mTable.update(destination, fromAddress, hopCount + 1, seq,
+                        metric + linkMetric, NEIGHBOR_ROUTE_TIMEOUT, now);
+            }
+        } catch (IOException e) {
+            if (D) Log.d(TAG, "bad gossip from " + fromAddress);
+        }
+        if (!changed) return;
+
+        for (String destination : getPendingDestinations()) {
+            RouteEntry route = mTable.lookup(destination, now);
+            if (route != null) flushBuffered(destination, route, now);
+        }
+    }
+
+    private MeshPacket forwardCopy(MeshPacket packet) {
+        MeshPacket copy = new MeshPacket(packet);
+        copy.hopCount++;
+        copy.ttl--;
+        copy.path.add(mLocalName);
+        return copy;
+    }
+}
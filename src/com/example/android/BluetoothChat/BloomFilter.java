@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+/**
+ * A Bloom filter over 64-bit message ids, used as the summary vector that
+ * two nodes exchange on contact. It may answer "present" for an id that was
+ * never added (a false positive, which only delays that message to a later
+ * contact) but never "absent" for one that was.
+ * <p>
+ * Encoded form: 1 byte hash count, 4 bytes bit count, then the bits.
+ */
+public class BloomFilter {
+    // Bounds of the encoded bit array, in bytes
+    public static final int MIN_BYTES = 16;
+    public static final int MAX_BYTES = 4096;
+
+    private final long[] mBits;
+    private final int mBitCount;
+    private final int mHashes;
+
+    /**
+     * Create a filter sized for a number of ids at a target false positive
+     * rate, within MIN_BYTES and MAX_BYTES.
+     */
+    public static BloomFilter create(int expected, double falsePositiveRate) {
+        double ln2 = Math.log(2);
+        double bits = -Math.max(expected, 1) * Math.log(falsePositiveRate) / (ln2 * ln2);
+        int bitCount = (int) Math.min(Math.max(bits, MIN_BYTES * 8), MAX_BYTES * 8);
+        bitCount = (bitCount + 63) & ~63;
+        int hashes = (int) Math.round((double) bitCount / Math.max(expected, 1) * ln2);
+        return new BloomFilter(bitCount, Math.min(Math.max(hashes, 1), 16));
+    }
+
+    public BloomFilter(int bitCount, int hashes) {
+        mBits = new long[(bitCount + 63) >>> 6];
+        mBitCount = mBits.length << 6;
+        mHashes = hashes;
+    }
+
+    public void add(long id) {
+        long h = mix(id);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < mHashes; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % mBitCount;
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long h = mix(id);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < mHashes; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % mBitCount;
+            if ((mBits[bit >>> 6] & 1L << bit) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Serialize the filter for sending.
+     */
+    public byte[] encode() {
+        byte[] out = new byte[5 + mBits.length * 8];
+        out[0] = (byte) mHashes;
+        Frame.writeInt(out, 1, mBitCount);
+        int pos = 5;
+        for (long word : mBits) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out[pos++] = (byte) (word >>> shift);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Parse a filter received from a peer.
+     * @return  The filter, or null if the bytes are malformed
+     */
+    public static BloomFilter decode(byte[] buffer, int offset, int length) {
+        if (length < 5) return null;
+        int hashes = buffer[offset] & 0xff;
+        int bitCount = Frame.readInt(buffer, offset + 1);
+        if (hashes == 0 || bitCount <= 0 || bitCount % 64 != 0
+                || bitCount / 8 > MAX_BYTES || length != 5 + bitCount / 8) {
+            return null;
+        }
+        BloomFilter filter = new BloomFilter(bitCount, hashes);
+        int pos = offset + 5;
+        for (int i = 0; i < filter.mBits.length; i++) {
+            long word = 0;
+            for (int b = 0; b < 8; b++) {
+                word = word << 8 | (buffer[pos++] & 0xff);
+            }
+            filter.mBits[i] = word;
+        }
+        return filter;
+    }
+
+    // 64-bit finalizer of MurmurHash3, spreads similar ids over all bits
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -16,11 +16,11 @@
 
 package com.example.android.BluetoothChat;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -29,9 +29,13 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.provider.MediaStore;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -63,14 +67,46 @@ public class BluetoothChat extends Activity {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_CONNECT_FAILED = 6;
+    public static final int MESSAGE_CONNECTION_LOST = 7;
+    public static final int MESSAGE_SEND_COMPLETE = 8;
+    public static final int MESSAGE_FILE_PROGRESS = 9;
+    public static final int MESSAGE_FILE_RECEIVED = 10;
 
     // Key names received from the BluetoothChatService Handler
     public static final String DEVICE_NAME = "device_name";
+    public static final String DEVICE_ADDRESS = "device_address";
     public static final String TOAST = "toast";
 
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE = 1;
     private static final int REQUEST_ENABLE_BT = 2;
+    private static final int REQUEST_PICK_FILE = 3;
+
+    // How often route lifetimes, discovery timeouts and idle links are checked
+    private static final long HOUSEKEEPING_INTERVAL = 1000;
+    // How long a device found by inquiry is assumed to stay in range
+    private static final long NEIGHBOR_TTL = 2 * 60 * 1000;
+    // Outgoing packets waiting for a link, per next hop and in total
+    private static final int QUEUE_CAPACITY_PER_DESTINATION = 64;
+    private static final int QUEUE_CAPACITY = 256;
+    // Packets handed to one link's writer before the rest is held back
+    private static final int LINK_QUEUE_LIMIT = 8;
+    // How long an undeliverable message is kept in the store
+    private static final long STORE_LIFETIME = 24 * 60 * 60 * 1000;
+
+    // Routing of chat messages, fixed per deployment: AODV needs a path to
+    // exist end to end, epidemic carries messages from contact to contact,
+    // OLSR keeps routes to every reachable node at the cost of steady
+    // HELLO and TC traffic
+    private static final int ROUTING_AODV = 1;
+    private static final int ROUTING_EPIDEMIC = 2;
+    private static final int ROUTING_OLSR = 3;
+    private static final int ROUTING_MODE = ROUTING_AODV;
+    // How often an epidemic node with messages to carry scans for contacts
+    private static final long EPIDEMIC_SCAN_INTERVAL = 2 * 60 * 1000;
+    // How long a flooded packet is remembered to drop its other copies
+    private static final long SEEN_LIFETIME = 10 * 60 * 1000;
 
     // Layout Views
     private TextView mTitle;
@@ -86,14 +122,29 @@ public class BluetoothChat extends Activity {
 	String currentTime;
     
     private String remoteDevice;
-    HashMap<String, String> neighbors = new HashMap<String, String>();
+    // Devices recently seen in range, by MAC address and by name
+    private final NeighborTable mNeighbors = new NeighborTable(NEIGHBOR_TTL);
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
     
-    private Queue<String[]> messageQueue = new LinkedList<String[]>(); //kolejka wiadomoci do wysania
-    private String[] messageToSend = new String[2]; // tablica wiadomoci w formacie String[0] - destination; String[1] - message 
+    // Outgoing packets per next hop, sent in turns
+    private final OutboundScheduler mScheduler = new OutboundScheduler(
+            QUEUE_CAPACITY_PER_DESTINATION, QUEUE_CAPACITY, OutboundScheduler.OVERFLOW_DROP_OLDEST);
+    // Address whose connect is in progress, null when idle
+    private String mConnectingAddress = null;
+    // Routing between mesh nodes, on demand or proactive
+    private MeshRouter mRouter = null;
+    // Messages waiting for their destination to become reachable
+    private MessageStore mStore = null;
+    // Store-carry-forward routing, only in ROUTING_EPIDEMIC mode
+    private EpidemicRouter mEpidemic = null;
+    // When the last scan for epidemic contacts started
+    private long mLastContactScan = 0;
+    // Flooded packets already handled, by MeshPacket.getFloodKey()
+    private final SeenCache mSeenPackets = new SeenCache(256, 64 * 1024);
     
-    // Name of the connected device
+    // Name and address of the connected device
     private String mConnectedDeviceName = null;
+    private String mConnectedDeviceAddress = null;
     // Array adapter for the conversation thread
     private ArrayAdapter<String> mConversationArrayAdapter;
     // Arrat adapter for the status view
@@ -208,12 +259,34 @@ public class BluetoothChat extends Activity {
                 
                 
                 addMessageToQueue(message, dest);
-                mSendButton.setEnabled(false);
             }
         });
 
         // Initialize the BluetoothChatService to perform bluetooth connections
         mChatService = new BluetoothChatService(this, mHandler);
+        mChatService.setFileDirectory(getDir("received", MODE_PRIVATE));
+
+        // Initialize the router and start its timers
+        if (ROUTING_MODE == ROUTING_OLSR) {
+            mRouter = new OlsrRouter(mBluetoothAdapter.getName(), mRouterCallbacks,
+                    mChatService.getLinkQuality());
+        } else {
+            mRouter = new AodvRouter(mBluetoothAdapter.getName(), mRouterCallbacks,
+                    mChatService.getLinkQuality());
+        }
+        mHandler.postDelayed(mHousekeeping, HOUSEKEEPING_INTERVAL);
+
+        // Open the store-and-forward log; without it undeliverable messages are dropped
+        try {
+            mStore = new MessageStore(getDir("store", MODE_PRIVATE));
+            mStore.setTimers(mChatService.getTimers());
+        } catch (IOException e) {
+            Log.e(TAG, "message store not available", e);
+        }
+        if (ROUTING_MODE == ROUTING_EPIDEMIC && mStore != null) {
+            mEpidemic = new EpidemicRouter(mBluetoothAdapter.getName(), mStore,
+                    STORE_LIFETIME, mEpidemicCallbacks);
+        }
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -234,8 +307,10 @@ public class BluetoothChat extends Activity {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mHousekeeping);
         // Stop the Bluetooth chat services
         if (mChatService != null) mChatService.stop();
+        if (mStore != null) mStore.close();
         if(D) Log.d(TAG, "--- ON DESTROY ---");
     }
 
@@ -249,65 +324,184 @@ public class BluetoothChat extends Activity {
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.option_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.scan:
+            doDiscovery();
+            return true;
+        case R.id.discoverable:
+            // Ensure this device is discoverable by others
+            ensureDiscoverable();
+            return true;
+        case R.id.send_file:
+            // Let the user pick the file to send
+            Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+            pickIntent.setType("*/*");
+            pickIntent.addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(pickIntent, REQUEST_PICK_FILE);
+            return true;
+        }
+        return false;
+    }
+
     /**
-     * Sends a message.
+     * Sends a message. If a fresh route to the destination is known the
+     * message goes out right away, otherwise device discovery is started
+     * and the message waits in the router until a route is found.
      * @param message  A string of text to send.
+     * @param destination  Name of the destination device
      */
-    
-    
     private void addMessageToQueue(String message, String destination){
-    	messageToSend[0] = destination;
-        messageToSend[1] = message;
-        messageQueue.add(messageToSend); //dodaje wiadomo do kolejki
-        
-        doDiscovery();
+        // Check that there's actually something to send
+        if (message.length() == 0 || destination.length() == 0) return;
+
+        // Epidemic messages are carried in the store until a contact takes them
+        if (mEpidemic != null) {
+            if (mEpidemic.sendData(destination, message.getBytes())) {
+                mConversationArrayAdapter.add("Me -> " + destination + ":  " + message);
+                currentTime = simpleDateFormat.format(new Date());
+                updateStatus(currentTime + ">> message stored, carrying " + mStore.size());
+            }
+            mOutStringBuffer.setLength(0);
+            mOutEditText.setText(mOutStringBuffer);
+            return;
+        }
+
+        // Hold the message back in the edit field while the queues are full
+        if (mScheduler.isFull()) {
+            Toast.makeText(this, "Too many messages waiting, try again later",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // A destination seen in range recently is connected directly
+        long now = SystemClock.elapsedRealtime();
+        NeighborTable.Neighbor neighbor = mNeighbors.findByName(destination, now);
+        if (neighbor != null) mRouter.neighborSeen(neighbor.name, neighbor.address, now);
+
+        if (mRouter.sendData(destination, message.getBytes(), now)) {
+            currentTime = simpleDateFormat.format(new Date());
+            updateStatus(currentTime + ">> route to " + destination + " known, sending");
+        } else if (!mBluetoothAdapter.isDiscovering()) {
+            doDiscovery();
+        }
+
+        // Reset out string buffer to zero and clear the edit text field
+        mOutStringBuffer.setLength(0);
+        mOutEditText.setText(mOutStringBuffer);
     }
-    
-    public void sendMessageBt(String message) {
-        // Check that we're actually connected before trying anything
-       if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
-           Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
-           return;
-       }
-    	
 
-        // Check that there's actually something to send
-       if(message.length() >0 ) {
-    	   // Get the message bytes and tell the BluetoothChatService to write
-	        byte[] send = message.getBytes();
-	        mChatService.write(send);
-	        
-	    	currentTime = simpleDateFormat.format(new Date());
-	    	updateStatus(currentTime + ">> message sent");
-	    	
-	        // Reset out string buffer to zero and clear the edit text field
-	        mOutStringBuffer.setLength(0);
-	        mOutEditText.setText(mOutStringBuffer);
-	       
-	        resetChatService();
-       }
-        
-       mSendButton.setEnabled(true);
-        
+    /**
+     * Queue a packet for a next hop and send what can be sent.
+     */
+    private void queuePacket(String address, byte[] data) {
+        if (!mScheduler.enqueue(address, data)) {
+            currentTime = simpleDateFormat.format(new Date());
+            updateStatus(currentTime + ">> outbound queue full, packet to " + address + " dropped");
+        }
+        sendQueuedPackets();
     }
-    
 
-    
-    
+    /**
+     * Send queued packets whose next hop has an open link, and start
+     * connecting to the next destination in turn unless a connect is
+     * already in progress. Everything queued for a destination goes out
+     * over the one connection.
+     */
+    private void sendQueuedPackets() {
+        mScheduler.flush(mTransmitter);
+
+        if (mConnectingAddress != null) return;
+        String address = mScheduler.nextToConnect(mTransmitter);
+        if (address == null) return;
+        // A link still opening or closing takes no connect; its own
+        // messages trigger the next attempt
+        if (!mChatService.connect(address)) return;
+        mConnectingAddress = address;
+        currentTime = simpleDateFormat.format(new Date());
+        updateStatus(currentTime + ">> connect to " + mConnectingAddress + ", "
+                + mScheduler.size(mConnectingAddress) + " packet(s) waiting");
+    }
 
-    private void resetChatService() {
-        mChatService.stop();
-        if (mChatService != null) {
-            // Only if the state is STATE_NONE, do we know that we haven't started already
-            if (mChatService.getState() == BluetoothChatService.STATE_NONE) {
-              // Start the Bluetooth chat services
-              mChatService.start();
-          	currentTime = simpleDateFormat.format(new Date());
-          	updateStatus(currentTime + ">> ChatService reset");
-          	
+    /**
+     * Keep a data packet that cannot be delivered now in the store.
+     * @return  true if it was stored
+     */
+    private boolean storeMessage(MeshPacket packet) {
+        if (mStore == null || packet.type != MeshPacket.TYPE_DATA) return false;
+        try {
+            mStore.append(packet.destination, packet.getMessageKey(), packet.encode(),
+                    System.currentTimeMillis() + STORE_LIFETIME);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "could not store message for " + packet.destination, e);
+            return false;
+        }
+    }
+
+    /**
+     * Send stored messages whose destination has a route now.
+     */
+    private void forwardStoredMessages() {
+        // In epidemic mode the store is the router's, contacts drain it
+        if (mStore == null || mEpidemic != null) return;
+        long now = SystemClock.elapsedRealtime();
+        for (String destination : mStore.getDestinations()) {
+            if (mRouter.findRoute(destination, now) == null) continue;
+            int forwarded = 0;
+            for (MessageStore.StoredMessage message : mStore.getMessages(destination)) {
+                byte[] data = mStore.read(message);
+                // Expired since the list was taken
+                if (data == null) continue;
+                MeshPacket packet = MeshPacket.decode(data, 0, data.length);
+                // A message that could not be sent stays for the next route
+                if (packet != null && !mRouter.resend(packet, now)) continue;
+                mStore.remove(message);
+                if (packet != null) forwarded++;
             }
-        }		
-	}
+            if (forwarded == 0) continue;
+            currentTime = simpleDateFormat.format(new Date());
+            updateStatus(currentTime + ">> forwarding " + forwarded
+                    + " stored message(s) to " + destination);
+        }
+    }
+
+    public boolean sendMessageBt(String address, byte[] send) {
+       // A slow link keeps the rest of its packets in the scheduler
+       if (mChatService.getQueueDepth(address) >= LINK_QUEUE_LIMIT) return false;
+       // The service writes on the link's own thread and reports back
+       if (mChatService.send(address, Frame.TYPE_PACKET, send, mSendCallback) == null) return false;
+       // Route control must not wait for data to fill the link buffer
+       if (MeshPacket.isControl(send)) mChatService.flush(address);
+       return true;
+    }
+
+    // Told by the link writers when a packet was written or failed
+    private final SendHandle.Callback mSendCallback = new SendHandle.Callback() {
+        public void onSendComplete(SendHandle handle) {
+            // Runs on the writer thread, the UI thread takes it from here
+            mHandler.obtainMessage(MESSAGE_SEND_COMPLETE, handle).sendToTarget();
+        }
+    };
+
+    // Lets the scheduler write to the links of the chat service
+    private final OutboundScheduler.Transmitter mTransmitter = new OutboundScheduler.Transmitter() {
+        public boolean isConnected(String address) {
+            return mChatService.isConnected(address);
+        }
+
+        public boolean write(String address, byte[] data) {
+            return sendMessageBt(address, data);
+        }
+    };
 
 	// The action listener for the EditText widget, to listen for the return key
     private TextView.OnEditorActionListener mWriteListener =
@@ -336,11 +530,6 @@ public class BluetoothChat extends Activity {
                 case BluetoothChatService.STATE_CONNECTED:
 
                     setTitle("connected to:" + mConnectedDeviceName);
-                    //jeli poczye si z prawidowym urzdzeniem to wylij do niego wiadomo
-                    if(mConnectedDeviceName.equals(messageToSend[0])){
-                    	sendMessageBt(messageToSend[1]);
-                    }
-                    
                     break;
                 case BluetoothChatService.STATE_CONNECTING:
                     //mTitle.setText(R.string.title_connecting);
@@ -355,36 +544,229 @@ public class BluetoothChat extends Activity {
                 break;
             case MESSAGE_WRITE:
                 byte[] writeBuf = (byte[]) msg.obj;
-                // construct a string from the buffer
-                String writeMessage = new String(writeBuf);
-                mConversationArrayAdapter.add("Me:  " + writeMessage);
+                if (msg.arg2 == Frame.TYPE_SUMMARY) {
+                    currentTime = simpleDateFormat.format(new Date());
+                    updateStatus(currentTime + ">> summary vector sent, " + writeBuf.length + " bytes");
+                    break;
+                }
+                MeshPacket written = MeshPacket.decode(writeBuf, 0, writeBuf.length);
+                if (written == null) break;
+                if (written.type == MeshPacket.TYPE_DATA && mEpidemic == null
+                        && written.originator.equals(mRouter.getLocalName())) {
+                    mConversationArrayAdapter.add("Me -> " + written.destination + ":  "
+                            + new String(written.payload));
+                } else {
+                    currentTime = simpleDateFormat.format(new Date());
+                    updateStatus(currentTime + ">> " + MeshPacket.typeName(written.type)
+                            + " " + written.destination + " sent");
+                }
                 break;
             case MESSAGE_READ:
-                byte[] readBuf = (byte[]) msg.obj;
-                // construct a string from the valid bytes in the buffer
-                String readMessage = new String(readBuf, 0, msg.arg1);
-                processMessage(readMessage);
-                mConversationArrayAdapter.add(mConnectedDeviceName+":  " + readMessage);
-                resetChatService();
+                PooledBuffer readBuf = (PooledBuffer) msg.obj;
+                try {
+                    // arg2 is the frame type, only mesh packets are handled here
+                    if (msg.arg2 == Frame.TYPE_PACKET) {
+                        processMessage(readBuf.data, readBuf.length, readBuf.address, readBuf.name);
+                    } else if (msg.arg2 == Frame.TYPE_SUMMARY && mEpidemic != null) {
+                        mEpidemic.handleSummary(readBuf.address, readBuf.data, 0, readBuf.length);
+                    }
+                } finally {
+                    // The service reuses the buffer for a later read
+                    readBuf.release();
+                }
                 break;
             case MESSAGE_DEVICE_NAME:
-                // save the connected device's name
+                // save the connected device's name and address
                 mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
+                mConnectedDeviceAddress = msg.getData().getString(DEVICE_ADDRESS);
+                mNeighbors.seen(mConnectedDeviceAddress, mConnectedDeviceName,
+                        NeighborTable.RSSI_UNKNOWN, SystemClock.elapsedRealtime());
                 Toast.makeText(getApplicationContext(), "Connected to "
                                + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
+                // The link is open now, send everything waiting for it
+                if (mConnectedDeviceAddress.equals(mConnectingAddress)) mConnectingAddress = null;
+                mRouter.linkUp(mConnectedDeviceName, mConnectedDeviceAddress,
+                        SystemClock.elapsedRealtime());
+                forwardStoredMessages();
+                if (mEpidemic != null) {
+                    mEpidemic.contactUp(mConnectedDeviceAddress, mConnectedDeviceName,
+                            SystemClock.elapsedRealtime());
+                }
+                sendQueuedPackets();
                 break;
             case MESSAGE_TOAST:
                 Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST),
                                Toast.LENGTH_SHORT).show();
                 break;
+            case MESSAGE_CONNECT_FAILED:
+                String failed = msg.getData().getString(DEVICE_ADDRESS);
+                if (failed.equals(mConnectingAddress)) mConnectingAddress = null;
+                // Packets for the device cannot be delivered now; keep the data
+                int stored = 0;
+                for (byte[] data : mScheduler.remove(failed)) {
+                    MeshPacket packet = MeshPacket.decode(data, 0, data.length);
+                    if (packet != null && storeMessage(packet)) stored++;
+                }
+                currentTime = simpleDateFormat.format(new Date());
+                updateStatus(currentTime + ">> connect to " + failed + " failed, "
+                        + stored + " message(s) stored");
+                mNeighbors.remove(failed);
+                mRouter.linkBroken(failed, SystemClock.elapsedRealtime());
+                sendQueuedPackets();
+                break;
+            case MESSAGE_SEND_COMPLETE:
+                SendHandle handle = (SendHandle) msg.obj;
+                if (!handle.isSent()) {
+                    byte[] data = handle.getData();
+                    MeshPacket packet = MeshPacket.decode(data, 0, data.length);
+                    boolean kept = packet != null && storeMessage(packet);
+                    currentTime = simpleDateFormat.format(new Date());
+                    updateStatus(currentTime + ">> send to " + handle.getAddress() + " failed"
+                            + (kept ? ", message stored" : ""));
+                }
+                // The link has room again for packets held back
+                sendQueuedPackets();
+                break;
+            case MESSAGE_FILE_PROGRESS:
+                currentTime = simpleDateFormat.format(new Date());
+                updateStatus(currentTime + ">> " + (msg.arg2 != 0 ? "receiving " : "sending ")
+                        + msg.obj + (msg.arg1 < 0 ? " failed" : ": " + msg.arg1 + "%"));
+                break;
+            case MESSAGE_FILE_RECEIVED:
+                currentTime = simpleDateFormat.format(new Date());
+                updateStatus(currentTime + ">> file saved as " + msg.obj);
+                break;
+            case MESSAGE_CONNECTION_LOST:
+                String closed = msg.getData().getString(DEVICE_ADDRESS);
+                currentTime = simpleDateFormat.format(new Date());
+                updateStatus(currentTime + ">> link to " + closed + " closed");
+                // Nothing else reports on a connect made while this link was closing
+                if (closed.equals(mConnectingAddress)) mConnectingAddress = null;
+                if (!mChatService.isConnected(closed)) {
+                    // A link that broke in use takes its routes with it
+                    if (msg.arg1 == 1) {
+                        mRouter.linkBroken(closed, SystemClock.elapsedRealtime());
+                    } else {
+                        mRouter.linkDown(closed, SystemClock.elapsedRealtime());
+                    }
+                    if (mEpidemic != null) mEpidemic.contactDown(closed);
+                }
+                // Packets still queued for it need a new connection
+                sendQueuedPackets();
+                break;
             }
         }
 
-		private void processMessage(String readMessage) {
-			
+		private void processMessage(byte[] readBuf, int length, String fromAddress, String fromName) {
+			MeshPacket packet = MeshPacket.decode(readBuf, 0, length);
+			if (packet == null) {
+				// Plain text from a device that does not speak the mesh protocol
+				mConversationArrayAdapter.add(fromName + ":  " + new String(readBuf, 0, length));
+				return;
+			}
+			// Copies of a flooded packet arriving over other paths are dropped
+			// before the router or the UI see them. RREQ copies go through:
+			// the router keeps its own cache and answers a copy that came
+			// over a better path.
+			long now = SystemClock.elapsedRealtime();
+			if (packet.isFlooded() && packet.type != MeshPacket.TYPE_RREQ
+					&& !mSeenPackets.add(packet.getFloodKey(), now + SEEN_LIFETIME, now)) {
+				if (D) Log.d(TAG, "duplicate " + packet);
+				return;
+			}
+			if (mEpidemic != null && packet.type == MeshPacket.TYPE_DATA) {
+				mEpidemic.handlePacket(packet, fromAddress);
+				return;
+			}
+			mRouter.handlePacket(packet, fromAddress, fromName, now);
 		}
     };
 
+    // Receives the router's outgoing packets and routing results
+    private final MeshRouter.Callbacks mRouterCallbacks = new MeshRouter.Callbacks() {
+        public void sendPacket(String nextHop, MeshPacket packet) {
+            queuePacket(nextHop, packet.encode());
+        }
+
+        public void broadcastPacket(MeshPacket packet) {
+            byte[] data = packet.encode();
+            for (NeighborTable.Neighbor neighbor : mNeighbors.getNeighbors(SystemClock.elapsedRealtime())) {
+                mScheduler.enqueue(neighbor.address, data);
+            }
+            sendQueuedPackets();
+        }
+
+        public void deliverPacket(MeshPacket packet) {
+            mConversationArrayAdapter.add(packet.originator + ":  "
+                    + (packet.payload == null ? "" : new String(packet.payload)));
+        }
+
+        public void routeFound(String destination, RouteEntry route) {
+            currentTime = simpleDateFormat.format(new Date());
+            updateStatus(currentTime + ">> route to " + destination + ": " + route.hopCount
+                    + " hop(s) via " + route.nextHop);
+            forwardStoredMessages();
+        }
+
+        public void routeFailed(String destination, List<MeshPacket> undelivered) {
+            int stored = 0;
+            for (MeshPacket packet : undelivered) {
+                if (storeMessage(packet)) stored++;
+            }
+            Toast.makeText(getApplicationContext(), destination + " is unreachable",
+                    Toast.LENGTH_SHORT).show();
+            currentTime = simpleDateFormat.format(new Date());
+            updateStatus(currentTime + ">> " + destination + " unreachable, "
+                    + stored + " message(s) stored for later");
+        }
+    };
+
+    // Receives the epidemic router's packets and delivered messages
+    private final EpidemicRouter.Callbacks mEpidemicCallbacks = new EpidemicRouter.Callbacks() {
+        public void sendPacket(String address, MeshPacket packet) {
+            queuePacket(address, packet.encode());
+        }
+
+        public void sendSummary(String address, byte[] summary) {
+            mChatService.write(address, Frame.TYPE_SUMMARY, summary);
+        }
+
+        public void deliverPacket(MeshPacket packet) {
+            mRouterCallbacks.deliverPacket(packet);
+        }
+    };
+
+    // Runs the router timers: expires routes and neighbors, retries route
+    // requests or sends HELLOs
+    private final Runnable mHousekeeping = new Runnable() {
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            mRouter.tick(now);
+            mNeighbors.purge(now);
+            mChatService.getLinkQuality().purge(now);
+            mSeenPackets.purge(now);
+            if (mEpidemic != null) makeContact(now);
+            mHandler.postDelayed(this, HOUSEKEEPING_INTERVAL);
+        }
+    };
+
+    /**
+     * Keep carried messages moving: connect to a neighbor not met for a
+     * while, or scan for new ones when there is none.
+     */
+    private void makeContact(long now) {
+        mEpidemic.tick(now);
+        if (mConnectingAddress != null || mStore.size() == 0) return;
+        String address = mEpidemic.nextContact(mNeighbors.getNeighbors(now), now);
+        if (address != null) {
+            if (mChatService.connect(address)) mConnectingAddress = address;
+        } else if (now - mLastContactScan >= EPIDEMIC_SCAN_INTERVAL
+                && !mBluetoothAdapter.isDiscovering()) {
+            mLastContactScan = now;
+            doDiscovery();
+        }
+    }
+
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         if(D) Log.d(TAG, "onActivityResult " + resultCode);
         switch (requestCode) {
@@ -399,6 +781,55 @@ public class BluetoothChat extends Activity {
                 Toast.makeText(this, R.string.bt_not_enabled_leaving, Toast.LENGTH_SHORT).show();
                 finish();
             }
+            break;
+        case REQUEST_PICK_FILE:
+            // When the user chose a file to send
+            if (resultCode == Activity.RESULT_OK && data != null) sendFile(data.getData());
+            break;
+        }
+    }
+
+    /**
+     * Send a file picked by the user to the device connected last. The
+     * transfer carries on by itself when the link drops and comes back.
+     */
+    private void sendFile(Uri uri) {
+        File file = uri == null ? null : getFile(uri);
+        if (file == null || !file.canRead()) {
+            Toast.makeText(this, R.string.file_not_readable, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String address = mConnectedDeviceAddress;
+        if (address == null || !mChatService.isConnected(address)) {
+            Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            mChatService.sendFile(address, file);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot send " + file, e);
+            Toast.makeText(this, R.string.file_not_readable, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        currentTime = simpleDateFormat.format(new Date());
+        updateStatus(currentTime + ">> sending " + file.getName() + " to " + mConnectedDeviceName);
+    }
+
+    /**
+     * Return the file behind a picked content URI, or null; files are
+     * mapped into memory, so a stream is not enough.
+     */
+    private File getFile(Uri uri) {
+        if ("file".equals(uri.getScheme())) return new File(uri.getPath());
+        Cursor cursor = getContentResolver().query(uri,
+                new String[] { MediaStore.MediaColumns.DATA }, null, null, null);
+        if (cursor == null) return null;
+        try {
+            if (!cursor.moveToFirst()) return null;
+            String path = cursor.getString(cursor.getColumnIndex(MediaStore.MediaColumns.DATA));
+            return path == null ? null : new File(path);
+        } finally {
+            cursor.close();
         }
     }
     
@@ -442,12 +873,20 @@ public class BluetoothChat extends Activity {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);                	
   
-               neighbors.put(device.getName(), device.getAddress());
-               //jeli ju znalaze odpowiednie urzdzenie zakocz skanowanie
-               if(device.getName().equals(messageToSend[0])){
+               if (device.getName() == null) return;
+               long now = SystemClock.elapsedRealtime();
+               int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) NeighborTable.RSSI_UNKNOWN);
+               NeighborTable.Neighbor neighbor = mNeighbors.seen(device.getAddress(), device.getName(), rssi, now);
+               mChatService.getLinkQuality().rssiSample(device.getAddress(), rssi, now);
+               mRouter.neighborSeen(device.getName(), device.getAddress(), now);
+               forwardStoredMessages();
+               // A device we have messages for is sent to right away and
+               // scanning stops, it only slows the connection down
+               if (mRouter.getPendingDestinations().contains(device.getName())) {
             	   mBluetoothAdapter.cancelDiscovery();
+            	   mRouter.requestRoute(device.getName(), now);
                }
-                	if (D) Log.d(TAG, neighbors.get(device.getName()));            
+                	if (D) Log.d(TAG, "found " + neighbor);            
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle("scanning finished");
@@ -458,20 +897,15 @@ public class BluetoothChat extends Activity {
               	updateStatus(currentTime + ">> Discovery finished");
               	
 
-              	//po zakoczeniu skanowania pocz z urzdzeniem docelowym
-            	if(neighbors.get(messageToSend[0]) != null){
-            		BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(neighbors.get(messageToSend[0]));
-            		// Attempt to connect to the device
-            		mChatService.connect(device);
-                  	currentTime = simpleDateFormat.format(new Date());
-                  	updateStatus(currentTime + ">> connect to" + messageToSend[0]);
-            	}
-            	else {
-            		Toast.makeText(getApplicationContext(), messageToSend[0] + " is unreachable", Toast.LENGTH_SHORT).show();
-                  	currentTime = simpleDateFormat.format(new Date());
-                  	updateStatus(currentTime + ">> " + messageToSend[0] + " unreachable, preparing RREQ");
-            		//TODO check Reouting table and send RREQ if required
-            	}
+              	// Neighbors are known now: send to the ones in range and look
+              	// up routes to the rest with a route request
+              	long now = SystemClock.elapsedRealtime();
+              	for (String destination : mRouter.getPendingDestinations()) {
+              		if (mRouter.findRoute(destination, now) == null) {
+              			updateStatus(currentTime + ">> " + destination + " not in range, sending RREQ");
+              		}
+              		mRouter.requestRoute(destination, now);
+              	}
               	
             }
         }
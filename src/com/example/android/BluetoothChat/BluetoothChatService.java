@@ -16,26 +16,40 @@
 
 package com.example.android.BluetoothChat;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. It has a task that listens for
+ * incoming connections, tasks for connecting with devices, and a reader
+ * and a writer task per open link for performing data transmissions.
+ * The tasks share one bounded pool of I/O threads, so the thread count
+ * does not grow with the number of peers and threads are reused.
+ * Links stay open after use and are reused for later messages to the
+ * same device, up to MAX_CONNECTIONS at a time.
+ * All socket work goes through a {@link LinkTransport}, RFCOMM by default.
  */
 public class BluetoothChatService {
     // Debugging
@@ -48,19 +62,92 @@ public class BluetoothChatService {
     // Unique UUID for this application
     private static final UUID MY_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
 
+    // Most links kept open at once; a piconet has at most seven active slaves
+    public static final int MAX_CONNECTIONS = 7;
+    // A link that carried no traffic for this long is closed
+    public static final long KEEP_ALIVE_TIMEOUT = 60 * 1000;
+
+    // Receive buffers shared by all links; a mesh packet fits in one
+    private static final int RECEIVE_BUFFER_COUNT = 32;
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+
+    // Offer DEFLATE compression; a link compresses only if both ends offer it
+    private static final boolean COMPRESSION = true;
+
+    // SendHandle types of a queued flush request, of the request that
+    // stops the writer, and of an ack handed from reader to writer; none
+    // is written as a frame
+    private static final int SEND_FLUSH = -1;
+    private static final int SEND_CLOSE = -2;
+    private static final int SEND_ACKED = -3;
+
+    // Writes are gathered up to one RFCOMM frame (the usual negotiated
+    // maximum) and wait at most FLUSH_DELAY ms for more to join them
+    public static final int LINK_MTU = 990;
+    public static final long FLUSH_DELAY = 10;
+    // Resolution of the timers, in ms
+    public static final long TIMER_TICK = 10;
+
+    // Messages bigger than a receive buffer are sent in fragments of one
+    // MTU, with up to FRAGMENT_WINDOW of them ahead of the acks
+    private static final int FRAGMENT_THRESHOLD = RECEIVE_BUFFER_SIZE;
+    private static final int FRAGMENT_SIZE = LINK_MTU - Frame.HEADER_SIZE - SlidingWindow.HEADER_SIZE;
+    private static final int FRAGMENT_WINDOW = SlidingWindow.MAX_WINDOW;
+    private static final long FRAGMENT_TIMEOUT = 2 * 1000;
+    private static final int FRAGMENT_RETRIES = 5;
+    // While chat and bulk data both wait, bulk gets this share of the bytes
+    private static final int INTERACTIVE_WEIGHT = 3;
+    private static final int BULK_WEIGHT = 1;
+
+    // Largest message, and most bytes a link holds in partly received ones
+    public static final int MAX_MESSAGE = 512 * 1024;
+    private static final int REASSEMBLY_LIMIT = 512 * 1024;
+
+    // A connect that has not succeeded after this long is given up
+    public static final long CONNECT_TIMEOUT = 15 * 1000;
+    // Most outgoing connects in progress at once
+    public static final int MAX_CONNECTS = 3;
+    // Every task blocks in I/O, so the pool holds one thread for each: the
+    // accept task, the connects, and a reader and writer per link, plus one
+    // link more for the one that is being evicted when the pool is full
+    private static final int IO_THREADS = 1 + MAX_CONNECTS + 2 * (MAX_CONNECTIONS + 1);
+    // Pool threads left idle this long exit
+    private static final long IO_KEEP_ALIVE = 30 * 1000;
+
     // Member fields
-    private final BluetoothAdapter mAdapter;
+    private final LinkTransport mTransport;
     private final Handler mHandler;
-    private AcceptThread mAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private final BufferPool mBufferPool = new BufferPool(RECEIVE_BUFFER_COUNT, RECEIVE_BUFFER_SIZE);
+    private volatile AcceptTask mAcceptTask;
+    // The collections are read without a lock, e.g. by send(); they are
+    // only changed while holding the service monitor, on connection churn.
+    // Outgoing connections in progress, by address
+    private final ConcurrentHashMap<String, ConnectTask> mConnectTasks =
+            new ConcurrentHashMap<String, ConnectTask>();
+    // Every open link, and the one used for sending to each address
+    private final CopyOnWriteArrayList<ConnectedTask> mConnectedTasks =
+            new CopyOnWriteArrayList<ConnectedTask>();
+    private final ConcurrentHashMap<String, ConnectedTask> mLinksByAddress =
+            new ConcurrentHashMap<String, ConnectedTask>();
+    // Summary of all links for the UI, derived by updateState()
+    private final AtomicInteger mState = new AtomicInteger(STATE_NONE);
+    private volatile LinkState.Listener mLinkStateListener;
+    // Files sent to and received from connected devices
+    private final FileTransfer mFiles;
+    // Connect and write outcomes per neighbor, for the router's link metrics
+    private final LinkQuality mLinkQuality = new LinkQuality();
+    // Runs the blocking I/O of all links; created by start() or the first connect
+    private ThreadPoolExecutor mIoPool;
+    // Runs the delayed flushes of every link's coalescing writer, the
+    // connect timeouts and keep-alives, and the timers of the Activity's store
+    private final TimingWheel mTimers = new TimingWheel("LinkTimer", TIMER_TICK);
+    private long mFlushDelay = FLUSH_DELAY;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_CONNECTED = 3;  // now connected to at least one remote device
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -68,181 +155,533 @@ public class BluetoothChatService {
      * @param handler  A Handler to send messages back to the UI Activity
      */
     public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
+        this(handler, new BluetoothLinkTransport(BluetoothAdapter.getDefaultAdapter(), NAME, MY_UUID));
+    }
+
+    /**
+     * Constructor. Prepares a new session over an arbitrary transport.
+     * @param handler  A Handler to send messages back to the UI Activity
+     * @param transport  The LinkTransport used to listen and connect
+     */
+    public BluetoothChatService(Handler handler, LinkTransport transport) {
+        mTransport = transport;
         mHandler = handler;
+        mFiles = new FileTransfer(mFileCallbacks);
     }
 
     /**
      * Set the current state of the chat connection
      * @param state  An integer defining the current connection state
      */
-    private synchronized void setState(int state) {
-        if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    private void setState(int state) {
+        int old = mState.getAndSet(state);
+        if (state == old) return;
+        if (D) Log.d(TAG, "setState() " + old + " -> " + state);
 
         // Give the new state to the Handler so the UI Activity can update
         mHandler.obtainMessage(BluetoothChat.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
     }
 
+    /**
+     * Derive the overall state from the open links and running threads.
+     * Two threads may race here; whoever sets last checks that the links
+     * did not change meanwhile, so the final state is always current.
+     */
+    private void updateState() {
+        int state;
+        do {
+            state = deriveState();
+            setState(state);
+        } while (deriveState() != state);
+    }
+
+    private int deriveState() {
+        if (!mConnectedTasks.isEmpty()) return STATE_CONNECTED;
+        if (!mConnectTasks.isEmpty()) return STATE_CONNECTING;
+        if (mAcceptTask != null) return STATE_LISTEN;
+        return STATE_NONE;
+    }
+
+    /**
+     * Set the listener told about the state changes of every link. It is
+     * called on the I/O threads and must not block.
+     */
+    public void setLinkStateListener(LinkState.Listener listener) {
+        mLinkStateListener = listener;
+    }
+
+    // Passes link transitions on to the listener set by the owner
+    private final LinkState.Listener mLinkStates = new LinkState.Listener() {
+        public void onLinkStateChanged(LinkState link, int from, int to) {
+            if (D) Log.d(TAG, "link " + link.getAddress() + " " + LinkState.name(from)
+                    + " -> " + LinkState.name(to));
+            LinkState.Listener listener = mLinkStateListener;
+            if (listener != null) listener.onLinkStateChanged(link, from, to);
+        }
+    };
+
+    // Hands file frames to the links and progress to the UI Activity
+    private final FileTransfer.Callbacks mFileCallbacks = new FileTransfer.Callbacks() {
+        public SendHandle sendFrame(String address, int type, byte[] data, SendHandle.Callback callback) {
+            return send(address, type, data, callback);
+        }
+
+        public void fileProgress(String address, String name, boolean incoming, long done, long size) {
+            int percent = done < 0 ? -1 : size == 0 ? 100 : (int) (done * 100 / size);
+            mHandler.obtainMessage(BluetoothChat.MESSAGE_FILE_PROGRESS, percent, incoming ? 1 : 0, name)
+                    .sendToTarget();
+        }
+
+        public void fileReceived(String address, File file) {
+            mHandler.obtainMessage(BluetoothChat.MESSAGE_FILE_RECEIVED, file).sendToTarget();
+        }
+    };
+
+    /**
+     * Send a file to a connected device. The transfer survives the link
+     * dropping and resumes when a link to the device is open again;
+     * progress is reported with MESSAGE_FILE_PROGRESS.
+     * @param address  The address of the device to send to
+     * @param file  The file to send
+     * @throws IOException  if the file cannot be opened
+     */
+    public void sendFile(String address, File file) throws IOException {
+        mFiles.send(address, file);
+    }
+
+    /**
+     * Set where files received from other devices are stored; without a
+     * directory they are refused.
+     */
+    public void setFileDirectory(File directory) {
+        mFiles.setDirectory(directory);
+    }
+
+    /**
+     * Set how long small writes may wait to be sent together, for open
+     * links and new ones.
+     * @param delay  Delay in ms; 0 sends every write at once
+     */
+    public synchronized void setFlushDelay(long delay) {
+        mFlushDelay = delay;
+        for (ConnectedTask r : mConnectedTasks) r.mmOutStream.setDelay(delay);
+    }
+
     /**
      * Return the current connection state. */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Return the state of the link to an address: LinkState.CONNECTED if
+     * one is open, CONNECTING if a connect is in progress, else CLOSED.
+     */
+    public int getLinkState(String address) {
+        ConnectedTask r = mLinksByAddress.get(address);
+        if (r != null) return r.mmState.get();
+        ConnectTask c = mConnectTasks.get(address);
+        if (c != null) return c.mmState.get();
+        return LinkState.CLOSED;
+    }
+
+    /**
+     * Return true if a link to the given address is open.
+     */
+    public boolean isConnected(String address) {
+        ConnectedTask r = mLinksByAddress.get(address);
+        return r != null && r.mmState.get() == LinkState.CONNECTED;
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
+     * Return the number of open links.
+     */
+    public int getConnectionCount() {
+        return mConnectedTasks.size();
+    }
+
+    /**
+     * Start the chat service. Specifically start AcceptTask to begin a
      * session in listening (server) mode. Called by the Activity onResume() */
     public synchronized void start() {
         if (D) Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+        // Start the task to listen on a BluetoothServerSocket
+        if (mAcceptTask == null) {
+            startExecutors();
+            mAcceptTask = new AcceptTask();
+            try {
+                mIoPool.execute(mAcceptTask);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "no thread to accept on", e);
+                mAcceptTask.cancel();
+                mAcceptTask = null;
+            }
+        }
+        updateState();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+    /**
+     * Create the I/O pool and start the timers if they are not running.
+     */
+    private synchronized void startExecutors() {
+        if (mIoPool == null) {
+            // No queue: a task runs on an idle thread or a new one, up to IO_THREADS
+            mIoPool = new ThreadPoolExecutor(0, IO_THREADS, IO_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<Runnable>(), new NamedThreadFactory("LinkIo"));
+        }
+        mTimers.start();
+    }
+
+    /**
+     * Creates numbered daemon threads, so they show up by role in traces.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mAcceptThread == null) {
-            mAcceptThread = new AcceptThread();
-            mAcceptThread.start();
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mPrefix + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
         }
-        setState(STATE_LISTEN);
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Name the calling pool thread after the task it runs.
+     * @return  The previous name, to be restored when the task ends
+     */
+    private static String renameThread(String name) {
+        Thread thread = Thread.currentThread();
+        String old = thread.getName();
+        thread.setName(name);
+        return old;
+    }
+
+    /**
+     * Start the ConnectTask to initiate a connection to a remote device.
      * @param device  The BluetoothDevice to connect
      */
-    public synchronized void connect(BluetoothDevice device) {
-        if (D) Log.d(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device) {
+        connect(device.getAddress());
+    }
+
+    /**
+     * Start the ConnectTask to initiate a connection to a remote node.
+     * Does nothing if a link to the node is already open or being opened.
+     * @param address  The transport address of the node to connect
+     * @return  true if a connect was started; only then is its outcome
+     *          reported with MESSAGE_DEVICE_NAME or MESSAGE_CONNECT_FAILED
+     */
+    public synchronized boolean connect(String address) {
+        if (D) Log.d(TAG, "connect to: " + address);
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+        if (mLinksByAddress.containsKey(address) || mConnectTasks.containsKey(address)) return false;
+
+        // A local limit says nothing about the device: no failure is
+        // reported, the caller tries again once a connect has finished
+        if (mConnectTasks.size() >= MAX_CONNECTS) {
+            Log.w(TAG, "too many connects in progress, not connecting to " + address);
+            return false;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+        // Start the task to connect with the given device. It is registered
+        // first, since a connect that fails at once removes itself again.
+        startExecutors();
+        ConnectTask connectTask = new ConnectTask(address);
+        mConnectTasks.put(address, connectTask);
+        connectTask.startTimeout();
+        try {
+            mIoPool.execute(connectTask);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "connect to " + address + " not started", e);
+            connectTask.mmTimeout.cancel();
+            connectTask.fail();
+            return false;
+        }
+        updateState();
+        return true;
+    }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+    /**
+     * Close every link to the given address.
+     */
+    public synchronized void disconnect(String address) {
+        ConnectTask connectTask = mConnectTasks.remove(address);
+        if (connectTask != null) connectTask.cancel();
+        for (ConnectedTask r : mConnectedTasks) {
+            if (r.mmAddress.equals(address)) r.cancel();
+        }
     }
-    
-    public synchronized void disconnect(){
-    	if (mState != STATE_CONNECTED){
-    		
-    	}
-    	
-    	
+
+    /**
+     * Start the ConnectedTask to begin managing a connection
+     * @param link  The Link on which the connection was made
+     */
+    public void connected(Link link) {
+        LinkState state = new LinkState(link.getRemoteAddress(), mLinkStates);
+        state.transition(LinkState.NEW, LinkState.CONNECTED);
+        connected(link, state);
     }
-    
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * Start the ConnectedTask for a link already in state CONNECTED.
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    private synchronized void connected(Link link, LinkState state) {
         if (D) Log.d(TAG, "connected");
+        String address = link.getRemoteAddress();
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+        // An incoming link makes our own attempt to the same device pointless
+        ConnectTask connectTask = mConnectTasks.remove(address);
+        if (connectTask != null && connectTask.mmSocket != link) connectTask.cancel();
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mAcceptThread != null) {mAcceptThread.cancel(); mAcceptThread = null;}
+        // Make room by closing the least recently used link
+        if (mConnectedTasks.size() >= MAX_CONNECTIONS) {
+            ConnectedTask lru = mConnectedTasks.get(0);
+            for (ConnectedTask r : mConnectedTasks) {
+                if (r.mmLastUsed < lru.mmLastUsed) lru = r;
+            }
+            if (D) Log.d(TAG, "pool full, closing " + lru.mmAddress);
+            lru.cancel();
+            if (removeConnection(lru)) connectionClosed(lru.mmAddress, false);
+        }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+        // Start the tasks to manage the connection and perform transmissions.
+        // If both ends connected at the same time the older link stays open
+        // until it idles out, but new messages use this one.
+        startExecutors();
+        ConnectedTask connectedTask = new ConnectedTask(link, state);
+        if (!connectedTask.start()) return;
+        mConnectedTasks.add(connectedTask);
+        mLinksByAddress.put(address, connectedTask);
+        connectedTask.mmIdleCheck = mTimers.schedule(connectedTask.mmKeepAlive, KEEP_ALIVE_TIMEOUT);
+        mFiles.linkUp(address);
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(BluetoothChat.DEVICE_NAME, device.getName());
+        bundle.putString(BluetoothChat.DEVICE_NAME, link.getRemoteName());
+        bundle.putString(BluetoothChat.DEVICE_ADDRESS, address);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        setState(STATE_CONNECTED);
+        updateState();
+    }
+
+    /**
+     * Forget a link that was closed. If another link to the same device is
+     * still open it takes over sending.
+     * @return  true if no link to the device is left
+     */
+    private synchronized boolean removeConnection(ConnectedTask r) {
+        if (!mConnectedTasks.remove(r)) return false;
+        if (mLinksByAddress.get(r.mmAddress) == r) {
+            mLinksByAddress.remove(r.mmAddress);
+            for (ConnectedTask other : mConnectedTasks) {
+                if (other.mmAddress.equals(r.mmAddress)) mLinksByAddress.put(r.mmAddress, other);
+            }
+        }
+        updateState();
+        return !mLinksByAddress.containsKey(r.mmAddress);
+    }
+
+    /**
+     * Close a link that carried no traffic for KEEP_ALIVE_TIMEOUT, or check
+     * it again when that much time has passed since it was last used.
+     * Runs on the timer thread.
+     */
+    private synchronized void closeIfIdle(ConnectedTask r) {
+        if (!mConnectedTasks.contains(r)) return;
+        long idle = SystemClock.elapsedRealtime() - r.mmLastUsed;
+        if (idle < KEEP_ALIVE_TIMEOUT) {
+            r.mmIdleCheck = mTimers.schedule(r.mmKeepAlive, KEEP_ALIVE_TIMEOUT - idle);
+            return;
+        }
+        if (D) Log.d(TAG, "closing idle link to " + r.mmAddress);
+        r.cancel();
+        if (removeConnection(r)) connectionClosed(r.mmAddress, false);
     }
 
     /**
-     * Stop all threads
+     * Stop all tasks. The pool threads exit once the closed sockets
+     * have released them.
      */
     public synchronized void stop() {
         if (D) Log.d(TAG, "stop");
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
-        if (mAcceptThread != null) {mAcceptThread.cancel(); mAcceptThread = null;}
+        for (ConnectTask connectTask : mConnectTasks.values()) connectTask.cancel();
+        mConnectTasks.clear();
+        for (ConnectedTask r : mConnectedTasks) r.cancel();
+        mConnectedTasks.clear();
+        mLinksByAddress.clear();
+        if (mAcceptTask != null) {mAcceptTask.cancel(); mAcceptTask = null;}
+        mFiles.close();
+        if (mIoPool != null) {mIoPool.shutdown(); mIoPool = null;}
+        mTimers.stop();
         setState(STATE_NONE);
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue a mesh packet for the link to an address.
+     * @param address  The address of the device to write to
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @return  false if no link to the address is open
+     * @see #send(String, int, byte[], SendHandle.Callback)
+     */
+    public boolean write(String address, byte[] out) {
+        return write(address, Frame.TYPE_PACKET, out);
+    }
+
+    /**
+     * Queue a frame of the given type for the link to an address.
+     * @param address  The address of the device to write to
+     * @param type  The frame type, Frame.TYPE_*
+     * @param out The bytes to write
+     * @return  false if no link to the address is open
+     */
+    public boolean write(String address, int type, byte[] out) {
+        return send(address, type, out, null) != null;
+    }
+
+    /**
+     * Queue a frame for the link to an address and return at once. The
+     * link's writer task writes it; no socket I/O happens on the caller.
+     * @param address  The address of the device to write to
+     * @param type  The frame type, Frame.TYPE_*
+     * @param out  The bytes to write
+     * @param callback  Told when the frame was written or failed, may be null
+     * @return  The handle of the send, or null if no link to the address is open
+     */
+    public SendHandle send(String address, int type, byte[] out, SendHandle.Callback callback) {
+        // The hot path: one concurrent map lookup, no service lock
+        ConnectedTask r = mLinksByAddress.get(address);
+        if (r == null) return null;
+        return r.send(type, out, callback);
+    }
+
+    /**
+     * Send the bytes queued for an address, including those waiting in its
+     * link's coalescing buffer, for control traffic that must not be delayed.
+     * @return  false if no link to the address is open
+     */
+    public boolean flush(String address) {
+        return send(address, SEND_FLUSH, null, null) != null;
+    }
+
+    /**
+     * Return the link estimates fed by this service's connects and writes.
+     */
+    public LinkQuality getLinkQuality() {
+        return mLinkQuality;
+    }
+
+    /**
+     * Return the timers of this service, for timeouts kept by other parts
+     * of the app. Tasks run on the timer thread and must not block.
+     */
+    public TimingWheel getTimers() {
+        return mTimers;
+    }
+
+    /**
+     * Return the number of control and chat frames queued and not yet
+     * written on the link to an address. Callers should hold back new data
+     * while it is high. Bulk data is paced by its own windows and not counted.
+     */
+    public int getQueueDepth(String address) {
+        ConnectedTask r = mLinksByAddress.get(address);
+        return r == null ? 0 : r.getQueueDepth();
+    }
+
+    /**
+     * Return the number of control and chat frames queued on all links.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ConnectedTask r : mConnectedTasks) depth += r.getQueueDepth();
+        return depth;
+    }
+
+    /**
+     * Return the traffic class of a frame, TrafficQueue.CLASS_*. Mesh
+     * control packets and link control go first, so that route discovery
+     * never waits behind file data or large messages.
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    private static int trafficClass(int type, byte[] data) {
+        if (data != null && data.length > FRAGMENT_THRESHOLD) return TrafficQueue.CLASS_BULK;
+        switch (type) {
+        case Frame.TYPE_PACKET:
+            return MeshPacket.isControl(data) ? TrafficQueue.CLASS_CONTROL : TrafficQueue.CLASS_INTERACTIVE;
+        case Frame.TYPE_FILE_DATA:
+            return TrafficQueue.CLASS_BULK;
+        default:
+            return TrafficQueue.CLASS_CONTROL;
         }
-        // Perform the write unsynchronized
-        r.write(out);
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
+     * @param address  The address that could not be connected
      */
-    private void connectionFailed() {
-        setState(STATE_LISTEN);
+    private void connectionFailed(String address) {
+        // Tell the Activity which link failed before it sees the state change
+        Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_CONNECT_FAILED);
+        Bundle bundle = new Bundle();
+        bundle.putString(BluetoothChat.DEVICE_ADDRESS, address);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+
+        updateState();
 
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
+        msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
+        bundle = new Bundle();
         bundle.putString(BluetoothChat.TOAST, "Unable to connect device");
         msg.setData(bundle);
         mHandler.sendMessage(msg);
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that the last link to a device is gone and notify the UI Activity.
+     * @param address  The address of the device
+     * @param lost  true if the link broke, false if it was closed on purpose
      */
-    private void connectionLost() {
-        setState(STATE_LISTEN);
+    private void connectionClosed(String address, boolean lost) {
+        // arg1 is 1 if the link broke, so the router can repair its routes
+        Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_CONNECTION_LOST, lost ? 1 : 0, 0);
+        Bundle bundle = new Bundle();
+        bundle.putString(BluetoothChat.DEVICE_ADDRESS, address);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+
+        if (!lost) return;
 
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
+        msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
+        bundle = new Bundle();
         bundle.putString(BluetoothChat.TOAST, "Device connection was lost");
         msg.setData(bundle);
         mHandler.sendMessage(msg);
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * This task runs while listening for incoming connections. It behaves
+     * like a server-side client. It runs until cancelled, accepting one
+     * connection after another.
      */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+    private class AcceptTask implements Runnable {
+        // The local server endpoint
+        private final LinkServer mmServerSocket;
 
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+        public AcceptTask() {
+            LinkServer tmp = null;
 
-            // Create a new listening server socket
+            // Create a new listening server endpoint
             try {
-                tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME, MY_UUID);
+                tmp = mTransport.listen();
             } catch (IOException e) {
                 Log.e(TAG, "listen() failed", e);
             }
@@ -250,12 +689,12 @@ public class BluetoothChatService {
         }
 
         public void run() {
-            if (D) Log.d(TAG, "BEGIN mAcceptThread" + this);
-            setName("AcceptThread");
-            BluetoothSocket socket = null;
+            if (D) Log.d(TAG, "BEGIN mAcceptTask" + this);
+            String poolName = renameThread("AcceptTask");
+            Link socket = null;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Keep listening to the server socket until cancelled
+            while (true) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -268,15 +707,11 @@ public class BluetoothChatService {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                        case STATE_LISTEN:
-                        case STATE_CONNECTING:
-                            // Situation normal. Start the connected thread.
-                            connected(socket, socket.getRemoteDevice());
-                            break;
-                        case STATE_NONE:
-                        case STATE_CONNECTED:
-                            // Either not ready or already connected. Terminate new socket.
+                        if (mAcceptTask == this) {
+                            // Situation normal. Start the connected task.
+                            connected(socket);
+                        } else {
+                            // Service stopped. Terminate new socket.
                             try {
                                 socket.close();
                             } catch (IOException e) {
@@ -287,7 +722,8 @@ public class BluetoothChatService {
                     }
                 }
             }
-            if (D) Log.i(TAG, "END mAcceptThread");
+            renameThread(poolName);
+            if (D) Log.i(TAG, "END mAcceptTask");
         }
 
         public void cancel() {
@@ -302,22 +738,25 @@ public class BluetoothChatService {
 
 
     /**
-     * This thread runs while attempting to make an outgoing connection
+     * This task runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * succeeds, fails, or is given up after CONNECT_TIMEOUT.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectTask implements Runnable {
+        private final Link mmSocket;
+        private final String mmAddress;
+        private final LinkState mmState;
+        private TimingWheel.Timeout mmTimeout;
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectTask(String address) {
+            mmAddress = address;
+            mmState = new LinkState(address, mLinkStates);
+            mmState.transition(LinkState.NEW, LinkState.CONNECTING);
+            Link tmp = null;
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a Link for a connection with the given address
             try {
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
+                tmp = mTransport.createLink(address);
             } catch (IOException e) {
                 Log.e(TAG, "create() failed", e);
             }
@@ -325,40 +764,79 @@ public class BluetoothChatService {
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            Log.i(TAG, "BEGIN mConnectTask " + mmAddress);
+            String poolName = renameThread("ConnectTask-" + mmAddress);
+            try {
+                connect();
+            } finally {
+                if (mmTimeout != null) mmTimeout.cancel();
+                renameThread(poolName);
+            }
+        }
 
+        private void connect() {
             // Make a connection to the BluetoothSocket
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
+                if (mmSocket == null) throw new IOException("no socket");
                 mmSocket.connect();
             } catch (IOException e) {
-                connectionFailed();
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
+                // Only a failure, not a cancel or a timeout, is reported here
+                if (mmState.close() == LinkState.CONNECTING) {
+                    mLinkQuality.connectResult(mmAddress, false, SystemClock.elapsedRealtime());
+                    fail();
+                } else {
+                    closeSocket();
                 }
-                // Start the service over to restart listening mode
-                BluetoothChatService.this.start();
                 return;
             }
 
-            // Reset the ConnectThread because we're done
+            // Hand over under the service lock, so stop() cannot slip in between
             synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
+                if (!mmState.transition(LinkState.CONNECTING, LinkState.CONNECTED)) {
+                    // Cancelled, timed out, or the device connected to us meanwhile
+                    mmState.close();
+                    closeSocket();
+                    return;
+                }
+                mLinkQuality.connectResult(mmAddress, true, SystemClock.elapsedRealtime());
+                // Start the connected task
+                connected(mmSocket, mmState);
             }
+        }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
+        /**
+         * Give the connect up after CONNECT_TIMEOUT; a blocked connect()
+         * returns once its socket is closed.
+         */
+        void startTimeout() {
+            mmTimeout = mTimers.schedule(new Runnable() {
+                public void run() {
+                    if (!mmState.transition(LinkState.CONNECTING, LinkState.CLOSED)) return;
+                    Log.e(TAG, "connect to " + mmAddress + " timed out");
+                    mLinkQuality.connectResult(mmAddress, false, SystemClock.elapsedRealtime());
+                    fail();
+                }
+            }, CONNECT_TIMEOUT);
+        }
+
+        /**
+         * Close the socket and report the failed connect.
+         */
+        void fail() {
+            mmState.close();
+            mConnectTasks.remove(mmAddress, this);
+            closeSocket();
+            connectionFailed(mmAddress);
         }
 
         public void cancel() {
+            if (mmState.transition(LinkState.CONNECTING, LinkState.CLOSING)) closeSocket();
+        }
+
+        private void closeSocket() {
+            if (mmSocket == null) return;
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -368,21 +846,63 @@ public class BluetoothChatService {
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * This task runs during a connection with a remote device.
+     * It reads incoming frames; outgoing frames are queued by send() and
+     * written by a second writer task, one {@link Frame} per message.
+     * Messages over FRAGMENT_THRESHOLD go out in fragments through a
+     * {@link SlidingWindow} owned by the writer, and come back together in
+     * a {@link Reassembler} owned by the reader, which also sends the acks.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedTask implements Runnable, FrameDecoder.Listener {
+        private final Link mmSocket;
+        private final String mmAddress;
+        private final String mmName;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+        private final CoalescingOutputStream mmOutStream;
+        private final LinkState mmState;
+        // SystemClock.elapsedRealtime() of the last read or write, for idle eviction
+        private volatile long mmLastUsed;
+        // Next check for KEEP_ALIVE_TIMEOUT, set under the service lock
+        private volatile TimingWheel.Timeout mmIdleCheck;
+        private final Runnable mmKeepAlive = new Runnable() {
+            public void run() {
+                closeIfIdle(ConnectedTask.this);
+            }
+        };
+        // Id of the last frame written on this link
+        private int mmFrameId;
+        // Payload compression, used for writes once the peer's HELLO offers it
+        private final LinkCompressor mmDeflater = COMPRESSION ? new LinkCompressor() : null;
+        private final LinkCompressor mmInflater = COMPRESSION ? new LinkCompressor() : null;
+        private volatile boolean mmCompress;
+        // Frames waiting for the writer task, by traffic class
+        private final TrafficQueue mmQueue = new TrafficQueue(INTERACTIVE_WEIGHT, BULK_WEIGHT);
+        private final SlidingWindow mmWindow =
+                new SlidingWindow(FRAGMENT_WINDOW, FRAGMENT_SIZE, FRAGMENT_TIMEOUT, FRAGMENT_RETRIES);
+        private final Reassembler mmReassembler =
+                new Reassembler(mBufferPool, MAX_MESSAGE, REASSEMBLY_LIMIT);
+        private final Runnable mmWriter = new Runnable() {
+            public void run() {
+                String poolName = renameThread("LinkWriter-" + mmAddress);
+                try {
+                    writeLoop();
+                } finally {
+                    renameThread(poolName);
+                }
+            }
+        };
 
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
+        public ConnectedTask(Link socket, LinkState state) {
+            Log.d(TAG, "create ConnectedTask");
             mmSocket = socket;
+            mmState = state;
+            mmAddress = socket.getRemoteAddress();
+            mmName = socket.getRemoteName();
+            mmLastUsed = SystemClock.elapsedRealtime();
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the Link input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -391,48 +911,298 @@ public class BluetoothChatService {
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            // The timer only queues the flush, the writer task does the I/O
+            mmOutStream = new CoalescingOutputStream(tmpOut, LINK_MTU, mFlushDelay, mTimers,
+                    new Runnable() {
+                        public void run() {
+                            send(SEND_FLUSH, null, null);
+                        }
+                    });
+
+            // Tell the peer what this end understands before anything else
+            byte[] hello = { (byte) (COMPRESSION ? Frame.CAP_DEFLATE : 0) };
+            mmQueue.offer(TrafficQueue.CLASS_CONTROL, new SendHandle(mmAddress, Frame.TYPE_HELLO, hello, null));
+        }
+
+        /**
+         * Start the writer and the reader on the I/O pool.
+         * @return  false if the pool had no thread left; the link is closed
+         */
+        public boolean start() {
+            try {
+                mIoPool.execute(mmWriter);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "no thread to write to " + mmAddress, e);
+                mmState.close();
+                closeSocket();
+                // Nothing will take the HELLO off the queue
+                closeQueue();
+                if (mmDeflater != null) mmDeflater.end();
+                connectionFailed(mmAddress);
+                return false;
+            }
+            try {
+                mIoPool.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "no thread to read from " + mmAddress, e);
+                mmState.close();
+                closeSocket();
+                stopWriter();
+                connectionFailed(mmAddress);
+                return false;
+            }
+            return true;
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            Log.i(TAG, "BEGIN mConnectedTask " + mmAddress);
+            String poolName = renameThread("LinkReader-" + mmAddress);
+            FrameDecoder decoder = new FrameDecoder(1024, Frame.MAX_PAYLOAD);
 
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                    // Read from the InputStream, frames are passed to onFrame()
+                    if (decoder.readFrom(mmInStream, this) < 0) throw new IOException("end of stream");
+                    mmLastUsed = SystemClock.elapsedRealtime();
+                    // One ack for all the fragments that came in this read
+                    byte[] ack = mmReassembler.takeAck();
+                    if (ack != null) send(Frame.TYPE_ACK, ack, null);
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    // Still CONNECTED means nobody closed the link: it broke
+                    boolean lost = mmState.close() == LinkState.CONNECTED;
+                    if (lost) Log.e(TAG, "disconnected", e);
+                    if (removeConnection(this)) connectionClosed(mmAddress, lost);
                     break;
                 }
             }
+            // The writer fails what is still queued and exits
+            stopWriter();
+            TimingWheel.Timeout idleCheck = mmIdleCheck;
+            if (idleCheck != null) idleCheck.cancel();
+            if (mmInflater != null) mmInflater.end();
+            mmReassembler.release();
+            renameThread(poolName);
         }
 
         /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
+         * A complete frame arrived. The payload is copied (or inflated) out of
+         * the decoder buffer into a pooled buffer, which the UI thread releases.
          */
-        public void write(byte[] buffer) {
+        public void onFrame(int type, int flags, int id, byte[] buffer, int offset, int length)
+                throws IOException {
+            if (type == Frame.TYPE_HELLO) {
+                int caps = length > 0 ? buffer[offset] : 0;
+                mmCompress = mmDeflater != null && (caps & Frame.CAP_DEFLATE) != 0;
+                if (D) Log.d(TAG, "HELLO from " + mmAddress + ", compression " + mmCompress);
+                return;
+            }
+            if (type == Frame.TYPE_ACK) {
+                // The send window belongs to the writer, hand the ack over
+                byte[] ack = new byte[length];
+                System.arraycopy(buffer, offset, ack, 0, length);
+                send(SEND_ACKED, ack, null);
+                return;
+            }
+
+            boolean compressed = (flags & Frame.FLAG_COMPRESSED) != 0;
+            if (compressed && mmInflater == null) throw new IOException("compressed frame not negotiated");
+            if (type == Frame.TYPE_FRAGMENT && !compressed) {
+                deliver(mmReassembler.onFragment(buffer, offset, length));
+                return;
+            }
+            int size = compressed ? LinkCompressor.getOriginalLength(buffer, offset, length) : length;
+            PooledBuffer payload;
             try {
-                mmOutStream.write(buffer);
+                payload = mBufferPool.acquire(size);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for a buffer");
+            }
+            try {
+                if (compressed) {
+                    mmInflater.decompress(buffer, offset, length, payload.data);
+                } else {
+                    System.arraycopy(buffer, offset, payload.data, 0, length);
+                }
+            } catch (IOException e) {
+                payload.release();
+                throw e;
+            }
+            if (type == Frame.TYPE_FRAGMENT) {
+                try {
+                    deliver(mmReassembler.onFragment(payload.data, 0, size));
+                } finally {
+                    payload.release();
+                }
+                return;
+            }
+            payload.length = size;
+            payload.type = type;
+            deliver(payload);
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+        /**
+         * Send a received message to the UI Activity, or a file frame to
+         * the file transfers.
+         * @param payload  The message with its length and type set, or null
+         */
+        private void deliver(PooledBuffer payload) throws IOException {
+            if (payload == null) return;
+            if (FileTransfer.isFileFrame(payload.type)) {
+                try {
+                    mFiles.onFrame(mmAddress, payload.type, payload.data, 0, payload.length);
+                } finally {
+                    payload.release();
+                }
+                return;
+            }
+            payload.address = mmAddress;
+            payload.name = mmName;
+            mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, payload.length, payload.type, payload)
+                    .sendToTarget();
+        }
+
+        /**
+         * Queue a frame for the writer task in its traffic class.
+         * @param type  The frame type, Frame.TYPE_*, or SEND_*
+         * @param buffer  The payload bytes to write
+         */
+        public SendHandle send(int type, byte[] buffer, SendHandle.Callback callback) {
+            SendHandle handle = new SendHandle(mmAddress, type, buffer, callback);
+            if (buffer != null && buffer.length > MAX_MESSAGE) {
+                handle.complete(new IOException("message too large: " + buffer.length));
+                return handle;
+            }
+            if (!mmQueue.offer(trafficClass(type, buffer), handle)) {
+                handle.complete(new IOException("link to " + mmAddress + " closed"));
+            }
+            return handle;
+        }
+
+        public int getQueueDepth() {
+            return mmQueue.size(TrafficQueue.CLASS_CONTROL) + mmQueue.size(TrafficQueue.CLASS_INTERACTIVE);
+        }
+
+        /**
+         * Body of the writer task: write queued frames in the order the
+         * traffic classes allow until the link fails or is cancelled, then
+         * fail whatever is left.
+         */
+        private void writeLoop() {
+            try {
+                // Fragments take turns with the bulk frames, so a large
+                // message does not hold up the small ones queued behind it
+                boolean unflushed = false;
+                while (true) {
+                    long wait = mmWindow.getWait(SystemClock.elapsedRealtime());
+                    if (wait != 0 && unflushed) {
+                        // Nothing to write until a frame or an ack comes in
+                        mmOutStream.flush();
+                        unflushed = false;
+                    }
+                    SendHandle handle = mmQueue.take(wait == 0 ? LINK_MTU : 0, wait);
+                    if (handle == null) continue;
+                    if (handle == TrafficQueue.FRAGMENT) {
+                        byte[] fragment = mmWindow.nextFragment(SystemClock.elapsedRealtime());
+                        if (fragment != null) {
+                            writeFrame(Frame.TYPE_FRAGMENT, fragment);
+                            unflushed = true;
+                        }
+                        continue;
+                    }
+                    if (handle.getType() == SEND_CLOSE) break;
+                    try {
+                        if (handle.getType() == SEND_FLUSH) {
+                            mmOutStream.flush();
+                        } else if (handle.getType() == SEND_ACKED) {
+                            byte[] ack = handle.getData();
+                            for (SendHandle done : mmWindow.onAck(ack, 0, ack.length)) sent(done);
+                        } else if (handle.getData().length > FRAGMENT_THRESHOLD) {
+                            // Completes once the peer acked every fragment
+                            mmWindow.add(handle);
+                            continue;
+                        } else {
+                            writeFrame(handle.getType(), handle.getData());
+                        }
+                    } catch (IOException e) {
+                        handle.complete(e);
+                        throw e;
+                    }
+                    sent(handle);
+                }
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                if (mmState.get() == LinkState.CONNECTED) {
+                    Log.e(TAG, "Exception during write", e);
+                    mLinkQuality.writeResult(mmAddress, false, SystemClock.elapsedRealtime());
+                }
+                // The reader sees the link fail and reports it
+                closeSocket();
+            } catch (InterruptedException e) {
+                // The pool was shut down under us
+            }
+
+            closeQueue();
+            IOException closed = new IOException("link to " + mmAddress + " closed");
+            for (SendHandle handle : mmWindow.clear()) handle.complete(closed);
+            if (mmDeflater != null) mmDeflater.end();
+        }
+
+        /**
+         * Complete a handle as sent, and share the sent message back to the
+         * UI Activity.
+         */
+        private void sent(SendHandle handle) {
+            handle.complete(null);
+            int type = handle.getType();
+            if (type >= 0) mLinkQuality.writeResult(mmAddress, true, SystemClock.elapsedRealtime());
+            if (type == Frame.TYPE_PACKET || type == Frame.TYPE_SUMMARY) {
+                mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, type, handle.getData())
+                        .sendToTarget();
+            }
+        }
+
+        /**
+         * Refuse new frames and fail those still queued.
+         */
+        private void closeQueue() {
+            IOException closed = new IOException("link to " + mmAddress + " closed");
+            for (SendHandle handle : mmQueue.close()) {
+                if (handle.getType() != SEND_CLOSE) handle.complete(closed);
             }
         }
 
+        /**
+         * Wake the writer task and make it exit. Control frames queued
+         * before are written if the socket still allows it, the rest fail.
+         */
+        private void stopWriter() {
+            mmQueue.offer(TrafficQueue.CLASS_CONTROL, new SendHandle(mmAddress, SEND_CLOSE, null, null));
+        }
+
+        /**
+         * Write one frame to the connected OutStream, on the writer task.
+         */
+        private void writeFrame(int type, byte[] buffer) throws IOException {
+            byte[] compressed = mmCompress ? mmDeflater.compress(buffer, 0, buffer.length) : null;
+            if (compressed != null) {
+                mmOutStream.write(Frame.encode(type, Frame.FLAG_COMPRESSED, ++mmFrameId,
+                        compressed, 0, compressed.length));
+            } else {
+                mmOutStream.write(Frame.encode(type, 0, ++mmFrameId, buffer, 0, buffer.length));
+            }
+            mmLastUsed = SystemClock.elapsedRealtime();
+            // Only mesh packets and fragments wait to be coalesced, link
+            // control goes out now
+            if (type != Frame.TYPE_PACKET && type != Frame.TYPE_FRAGMENT) mmOutStream.flush();
+        }
+
         public void cancel() {
+            if (!mmState.transition(LinkState.CONNECTED, LinkState.CLOSING)) return;
+            closeSocket();
+            stopWriter();
+        }
+
+        private void closeSocket() {
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * LinkTransport over Bluetooth RFCOMM. Links are addressed by the remote
+ * device MAC address.
+ */
+public class BluetoothLinkTransport implements LinkTransport {
+
+    private final BluetoothAdapter mAdapter;
+    private final String mName;
+    private final UUID mUuid;
+
+    /**
+     * @param adapter  The local Bluetooth adapter
+     * @param name  Name for the SDP record when creating server socket
+     * @param uuid  Service UUID used both to listen and to connect
+     */
+    public BluetoothLinkTransport(BluetoothAdapter adapter, String name, UUID uuid) {
+        mAdapter = adapter;
+        mName = name;
+        mUuid = uuid;
+    }
+
+    public LinkServer listen() throws IOException {
+        return new RfcommServer(mAdapter.listenUsingRfcommWithServiceRecord(mName, mUuid));
+    }
+
+    public Link createLink(String address) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return new RfcommLink(device.createRfcommSocketToServiceRecord(mUuid), device, true);
+    }
+
+    private class RfcommServer implements LinkServer {
+        private final BluetoothServerSocket mmServerSocket;
+
+        RfcommServer(BluetoothServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        public Link accept() throws IOException {
+            BluetoothSocket socket = mmServerSocket.accept();
+            return new RfcommLink(socket, socket.getRemoteDevice(), false);
+        }
+
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+    private class RfcommLink implements Link {
+        private final BluetoothSocket mmSocket;
+        private final BluetoothDevice mmDevice;
+        private final boolean mmOutgoing;
+
+        RfcommLink(BluetoothSocket socket, BluetoothDevice device, boolean outgoing) {
+            mmSocket = socket;
+            mmDevice = device;
+            mmOutgoing = outgoing;
+        }
+
+        public void connect() throws IOException {
+            if (!mmOutgoing) return;
+
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+            mmSocket.connect();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return mmDevice.getAddress();
+        }
+
+        public String getRemoteName() {
+            return mmDevice.getName();
+        }
+
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+
+        @Override
+        public String toString() {
+            return "RfcommLink[" + mmDevice.getAddress() + "]";
+        }
+    }
+}
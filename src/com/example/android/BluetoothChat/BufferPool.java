@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * A fixed ring of reusable receive buffers shared by all links. Readers
+ * take a buffer per frame and the consumer gives it back, so the read loop
+ * allocates nothing once the ring is warm. When every buffer is in use the
+ * reader waits, which slows the sender down instead of growing memory.
+ */
+public class BufferPool {
+    // Debugging
+    private static final String TAG = "BufferPool";
+
+    // How long a reader waits for a free buffer before allocating one
+    private static final long ACQUIRE_TIMEOUT = 5 * 1000;
+
+    private final ArrayBlockingQueue<PooledBuffer> mFree;
+    private final int mBufferSize;
+
+    /**
+     * @param count  Number of buffers in the ring
+     * @param bufferSize  Size of each buffer; larger requests get a one-off buffer
+     */
+    public BufferPool(int count, int bufferSize) {
+        mFree = new ArrayBlockingQueue<PooledBuffer>(count);
+        mBufferSize = bufferSize;
+        for (int i = 0; i < count; i++) {
+            mFree.add(new PooledBuffer(this, bufferSize));
+        }
+    }
+
+    /**
+     * Take a buffer of at least the given size, waiting if all are in use.
+     */
+    public PooledBuffer acquire(int size) throws InterruptedException {
+        if (size > mBufferSize) {
+            // Too big for the ring, not worth keeping around
+            return new PooledBuffer(null, size);
+        }
+        PooledBuffer buffer = mFree.poll();
+        if (buffer == null) buffer = mFree.poll(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (buffer == null) {
+            // Consumer is stuck or leaking buffers; do not stall the link forever
+            Log.w(TAG, "pool exhausted, allocating");
+            buffer = new PooledBuffer(null, mBufferSize);
+        }
+        return buffer;
+    }
+
+    void release(PooledBuffer buffer) {
+        mFree.offer(buffer);
+    }
+
+    /**
+     * Return the number of buffers currently free.
+     */
+    public int getFreeCount() {
+        return mFree.size();
+    }
+}
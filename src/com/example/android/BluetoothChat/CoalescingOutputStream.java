@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that gathers small writes into one buffer of the link
+ * MTU, so a burst of short frames leaves as a few full radio packets
+ * instead of many small ones. The buffer is written out when it is full,
+ * when flush() is called, or at the latest after the flush delay.
+ * <p>
+ * A write is never split: one that does not fit flushes the buffer first,
+ * and one of at least the MTU goes out on its own.
+ * <p>
+ * The delayed flush either runs on the timer thread, or, when the stream
+ * is given a flush request, only asks the stream's writer to call flush(),
+ * so a stalled link never blocks a timer thread shared with other work.
+ */
+public class CoalescingOutputStream extends OutputStream {
+    private final OutputStream mOut;
+    private final TimingWheel mTimers;
+    // Asks the writer to flush when the delay is up, null to flush on the timer
+    private final Runnable mFlushRequest;
+    private final byte[] mBuffer;
+    private int mCount;
+    // Longest time bytes wait in the buffer, in ms; 0 writes through
+    private volatile long mDelay;
+    private TimingWheel.Timeout mPendingFlush;
+    // A failure of a timed flush, reported by the next call
+    private IOException mError;
+
+    /**
+     * @param out  The link stream
+     * @param mtu  Size of the buffer, the most bytes written at once
+     * @param delay  Longest time bytes wait in the buffer, in ms
+     * @param timers  Runs the delayed flushes
+     */
+    public CoalescingOutputStream(OutputStream out, int mtu, long delay, TimingWheel timers) {
+        this(out, mtu, delay, timers, null);
+    }
+
+    /**
+     * @param out  The link stream
+     * @param mtu  Size of the buffer, the most bytes written at once
+     * @param delay  Longest time bytes wait in the buffer, in ms
+     * @param timers  Times the delayed flushes
+     * @param flushRequest  Run on the timer thread when the delay is up; it
+     *                      must not block, and must make the writer call flush()
+     */
+    public CoalescingOutputStream(OutputStream out, int mtu, long delay, TimingWheel timers,
+            Runnable flushRequest) {
+        mOut = out;
+        mBuffer = new byte[mtu];
+        mDelay = delay;
+        mTimers = timers;
+        mFlushRequest = flushRequest;
+    }
+
+    public void setDelay(long delay) {
+        mDelay = delay;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkError();
+        if (mCount + len > mBuffer.length) flushBuffer();
+        if (len >= mBuffer.length) {
+            mOut.write(b, off, len);
+            return;
+        }
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+        if (mCount == mBuffer.length || mDelay <= 0) {
+            flushBuffer();
+        } else if (mPendingFlush == null) {
+            mPendingFlush = mTimers.schedule(mFlushTask, mDelay);
+        }
+    }
+
+    /**
+     * Write out the buffered bytes now, for traffic that must not wait.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkError();
+        flushBuffer();
+        mOut.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (mError == null) flushBuffer();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mPendingFlush != null) {
+            mPendingFlush.cancel();
+            mPendingFlush = null;
+        }
+        if (mCount == 0) return;
+        try {
+            mOut.write(mBuffer, 0, mCount);
+        } finally {
+            mCount = 0;
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (mError != null) throw mError;
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        public void run() {
+            if (mFlushRequest != null) {
+                // Without the lock, which the writer holds while it blocks;
+                // mPendingFlush stays set until the requested flush() is done
+                mFlushRequest.run();
+                return;
+            }
+            synchronized (CoalescingOutputStream.this) {
+                mPendingFlush = null;
+                try {
+                    flushBuffer();
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Store-carry-forward (epidemic, spray-and-wait) routing for networks that
+ * are never connected end to end. Every message is kept in the
+ * {@link MessageStore}; when two nodes make contact each sends a
+ * {@link BloomFilter} summary of the ids it holds and the other sends only
+ * the messages missing from it.
+ * <p>
+ * A message starts with DEFAULT_COPIES copies. Handing it to a relay gives
+ * away half of them; a node left with one copy waits until it meets the
+ * destination itself. Like {@link AodvRouter} it does no I/O itself.
+ */
+public class EpidemicRouter {
+    // Debugging
+    private static final String TAG = "EpidemicRouter";
+    private static final boolean D = true;
+
+    // Copies of a new message that may be spread through the network
+    public static final int DEFAULT_COPIES = 8;
+    // Least time between two contacts started with the same neighbor
+    public static final long CONTACT_INTERVAL = 60 * 1000;
+    // Target false positive rate of the summary vector
+    private static final double SUMMARY_FALSE_POSITIVES = 0.01;
+    // Ids of messages delivered here that are still announced to peers
+    private static final int MAX_DELIVERED = 1024;
+
+    /**
+     * Where the router hands its packets.
+     */
+    public interface Callbacks {
+        /** Send a packet over the open link with the given address. */
+        void sendPacket(String address, MeshPacket packet);
+        /** Send a summary vector over the open link with the given address. */
+        void sendSummary(String address, byte[] summary);
+        /** A data packet addressed to this node arrived. */
+        void deliverPacket(MeshPacket packet);
+    }
+
+    private final String mLocalName;
+    private final MessageStore mStore;
+    private final long mLifetime;
+    private final Callbacks mCallbacks;
+
+    // Last message number used, unique across restarts (see constructor)
+    private int mMessageId;
+
+    // Ids of messages delivered to this node, oldest first
+    private final LinkedHashSet<Long> mDelivered = new LinkedHashSet<Long>();
+    // Open contacts: link address -> node name
+    private final HashMap<String, String> mContacts = new HashMap<String, String>();
+    // The last summary received over each open contact
+    private final HashMap<String, BloomFilter> mPeerSummaries = new HashMap<String, BloomFilter>();
+    // Ids each open contact got since its summary, sent by either side
+    private final HashMap<String, HashSet<Long>> mPeerKnown = new HashMap<String, HashSet<Long>>();
+    // When a contact with each link address was last made
+    private final HashMap<String, Long> mLastContact = new HashMap<String, Long>();
+
+    /**
+     * @param localName  Name of this node, as other nodes address it
+     * @param store  Holds the messages carried by this node
+     * @param lifetime  How long a message is carried before it is dropped
+     * @param callbacks  Receives outgoing packets and delivered messages
+     */
+    public EpidemicRouter(String localName, MessageStore store, long lifetime, Callbacks callbacks) {
+        mLocalName = localName;
+        mStore = store;
+        mLifetime = lifetime;
+        mCallbacks = callbacks;
+
+        // Continue after the clock and after every own message still stored
+        mMessageId = (int) (System.currentTimeMillis() / 1000);
+        long own = (long) localName.hashCode() << 32;
+        for (long id : store.getIds()) {
+            if ((id & 0xffffffff00000000L) == own && MeshPacket.isNewer((int) id, mMessageId)) {
+                mMessageId = (int) id;
+            }
+        }
+    }
+
+    /**
+     * Queue a chat message for the destination and offer it to every
+     * peer currently in contact.
+     * @return  false if the message could not be stored
+     */
+    public boolean sendData(String destination, byte[] payload) {
+        MeshPacket packet = new MeshPacket(MeshPacket.TYPE_DATA, mLocalName, destination);
+        packet.id = ++mMessageId;
+        packet.copies = DEFAULT_COPIES;
+        packet.payload = payload;
+        if (!store(packet)) return false;
+        for (String address : mContacts.keySet()) {
+            offer(address);
+        }
+        return true;
+    }
+
+    /**
+     * A link to a peer is open: send it our summary vector.
+     * @param address  The peer's link address
+     * @param name  The peer's node name
+     */
+    public void contactUp(String address, String name, long now) {
+        mContacts.put(address, name);
+        mPeerSummaries.remove(address);
+        mPeerKnown.put(address, new HashSet<Long>());
+        mLastContact.put(address, now);
+        mCallbacks.sendSummary(address, buildSummary());
+    }
+
+    /**
+     * The link to a peer is closed.
+     */
+    public void contactDown(String address) {
+        mContacts.remove(address);
+        mPeerSummaries.remove(address);
+        mPeerKnown.remove(address);
+    }
+
+    /**
+     * Handle the summary vector a peer sent: send it what it is missing.
+     */
+    public void handleSummary(String address, byte[] buffer, int offset, int length) {
+        BloomFilter summary = BloomFilter.decode(buffer, offset, length);
+        if (summary == null) {
+            Log.w(TAG, "Malformed summary from " + address);
+            return;
+        }
+        mPeerSummaries.put(address, summary);
+        offer(address);
+    }
+
+    /**
+     * Handle a data packet a peer sent: deliver it if it is for this node,
+     * otherwise carry it.
+     */
+    public void handlePacket(MeshPacket packet, String fromAddress) {
+        if (packet.type != MeshPacket.TYPE_DATA) return;
+        long key = packet.getMessageKey();
+        HashSet<Long> known = mPeerKnown.get(fromAddress);
+        if (known != null) known.add(key);
+
+        if (packet.destination.equals(mLocalName)) {
+            if (!mDelivered.add(key)) return;
+            if (mDelivered.size() > MAX_DELIVERED) {
+                Iterator<Long> oldest = mDelivered.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            mCallbacks.deliverPacket(packet);
+        } else if (!mStore.contains(key)) {
+            MeshPacket copy = new MeshPacket(packet);
+            copy.hopCount++;
+            if (store(copy) && D) Log.d(TAG, "Carrying " + copy + " copies=" + copy.copies);
+            // Peers met meanwhile may be on the way to the destination
+            for (String address : mContacts.keySet()) {
+                if (!address.equals(fromAddress)) offer(address);
+            }
+        }
+    }
+
+    /**
+     * Pick a neighbor to make contact with, so carried messages keep moving.
+     * @return  The link address to connect to, or null if there is none
+     *          or nothing to carry
+     */
+    public String nextContact(List<NeighborTable.Neighbor> neighbors, long now) {
+        if (mStore.size() == 0) return null;
+        String best = null;
+        long bestTime = Long.MAX_VALUE;
+        for (NeighborTable.Neighbor neighbor : neighbors) {
+            if (mContacts.containsKey(neighbor.address)) continue;
+            Long last = mLastContact.get(neighbor.address);
+            long time = last == null ? Long.MIN_VALUE : last.longValue();
+            if (last != null && now - time < CONTACT_INTERVAL) continue;
+            if (time < bestTime) {
+                best = neighbor.address;
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Forget contact times that no longer hold anything back.
+     */
+    public void tick(long now) {
+        Iterator<Map.Entry<String, Long>> it = mLastContact.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() >= CONTACT_INTERVAL) it.remove();
+        }
+    }
+
+    /**
+     * Build the summary vector of every id this node holds or has received.
+     */
+    private byte[] buildSummary() {
+        long[] ids = mStore.getIds();
+        BloomFilter filter = BloomFilter.create(ids.length + mDelivered.size(), SUMMARY_FALSE_POSITIVES);
+        for (long id : ids) filter.add(id);
+        for (Long id : mDelivered) filter.add(id);
+        return filter.encode();
+    }
+
+    /**
+     * Send a peer the carried messages its summary lacks, spraying half the
+     * copies of each to a relay and the message itself to its destination.
+     */
+    private void offer(String address) {
+        String peer = mContacts.get(address);
+        BloomFilter summary = mPeerSummaries.get(address);
+        HashSet<Long> known = mPeerKnown.get(address);
+        if (peer == null || summary == null) return;
+
+        int sent = 0;
+        for (long id : mStore.getIds()) {
+            MessageStore.StoredMessage message = mStore.get(id);
+            if (message == null) continue;
+            boolean forPeer = message.destination.equals(peer);
+            if (known.contains(id)) continue;
+            if (summary.mightContain(id)) {
+                // The destination has it already, nothing left to carry
+                if (forPeer) mStore.remove(message);
+                continue;
+            }
+
+            byte[] data = mStore.read(message);
+            MeshPacket packet = data == null ? null : MeshPacket.decode(data, 0, data.length);
+            if (packet == null) {
+                mStore.remove(message);
+                continue;
+            }
+            if (forPeer) {
+                packet.copies = 1;
+                mCallbacks.sendPacket(address, packet);
+                mStore.remove(message);
+            } else if (packet.copies > 1) {
+                MeshPacket copy = new MeshPacket(packet);
+                copy.copies = packet.copies / 2;
+                mCallbacks.sendPacket(address, copy);
+                packet.copies -= copy.copies;
+                mStore.remove(message);
+                store(packet, message.expiresAt);
+            } else {
+                // Waiting to meet the destination
+                continue;
+            }
+            known.add(id);
+            sent++;
+        }
+        if (D && sent > 0) Log.d(TAG, "Sent " + sent + " messages to " + peer);
+    }
+
+    private boolean store(MeshPacket packet) {
+        return store(packet, System.currentTimeMillis() + mLifetime);
+    }
+
+    private boolean store(MeshPacket packet, long expiresAt) {
+        try {
+            return mStore.append(packet.destination, packet.getMessageKey(), packet.encode(), expiresAt);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot store " + packet, e);
+            return false;
+        }
+    }
+}
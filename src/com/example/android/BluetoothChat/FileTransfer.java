@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Resumable file transfer to and from directly connected devices. The
+ * sender offers a file, the receiver answers with the offset it already
+ * holds, and the sender streams the rest from a memory-mapped window of
+ * the file. Frames:
+ * <pre>
+ *   Frame.TYPE_FILE_OFFER   id 8, size 8, name (UTF-8)
+ *   Frame.TYPE_FILE_RESUME  id 8, offset 8; -1 refuses, size completes
+ *   Frame.TYPE_FILE_DATA    id 8, offset 8, up to CHUNK_SIZE bytes
+ * </pre>
+ * The receiver writes into a partial file and every CHECKPOINT_INTERVAL
+ * bytes forces it to disk and records the offset next to it. When a link
+ * drops, the sender keeps the transfer and offers it again as soon as a
+ * link to the device is back; the receiver then resumes from what it has,
+ * so nothing that already arrived is sent twice. Since the id is derived
+ * from the file, this works across restarts of the receiver as well.
+ * <p>
+ * Like the routers it does no socket I/O itself. Frames arrive on the
+ * link reader tasks and send completions on the writer tasks.
+ */
+public class FileTransfer {
+    // Debugging
+    private static final String TAG = "FileTransfer";
+    private static final boolean D = true;
+
+    private static final int HEADER_SIZE = 16;
+    // File bytes per data frame; with the header a frame fills a receive buffer
+    public static final int CHUNK_SIZE = 4096 - HEADER_SIZE;
+    // Data frames queued on the link per transfer
+    private static final int CHUNKS_IN_FLIGHT = 16;
+    // The receiver makes its data durable and saves the offset this often
+    public static final long CHECKPOINT_INTERVAL = 256 * 1024;
+    // How much of a file is mapped at a time
+    private static final long MAP_SIZE = 1024 * 1024;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+    /**
+     * Where the transfers hand their frames and report progress.
+     */
+    public interface Callbacks {
+        /** Queue a frame on the open link with the given address; null if there is none. */
+        SendHandle sendFrame(String address, int type, byte[] data, SendHandle.Callback callback);
+        /** Bytes done of a transfer; done == size when it completed, -1 if it failed. */
+        void fileProgress(String address, String name, boolean incoming, long done, long size);
+        /** A file was received completely. */
+        void fileReceived(String address, File file);
+    }
+
+    private final Callbacks mCallbacks;
+    // Where received files go, null to refuse them
+    private File mDirectory;
+    private final HashMap<Long, Outgoing> mOutgoing = new HashMap<Long, Outgoing>();
+    private final HashMap<Long, Incoming> mIncoming = new HashMap<Long, Incoming>();
+
+    private class Outgoing implements SendHandle.Callback {
+        final long id;
+        final String address;
+        final File file;
+        final long size;
+        final FileChannel channel;
+        // The mapped part of the file and where it starts
+        MappedByteBuffer map;
+        long mapStart;
+        // Next byte to send, and data frames queued on the link
+        long offset;
+        int inFlight;
+        // True while the receiver accepted and the link is up
+        boolean active;
+        long reported;
+
+        Outgoing(long id, String address, File file) throws IOException {
+            this.id = id;
+            this.address = address;
+            this.file = file;
+            this.size = file.length();
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        public void onSendComplete(SendHandle handle) {
+            synchronized (FileTransfer.this) {
+                inFlight--;
+                if (!handle.isSent()) {
+                    // The link is gone; the transfer goes on with the next one
+                    active = false;
+                    return;
+                }
+                if (offset - reported >= CHECKPOINT_INTERVAL) {
+                    reported = offset;
+                    mCallbacks.fileProgress(address, file.getName(), false, offset, size);
+                }
+                pump(this);
+            }
+        }
+    }
+
+    private static class Incoming {
+        final long id;
+        final String name;
+        final long size;
+        final File part;
+        final FileChannel channel;
+        // Bytes received, and the part of them recorded in the checkpoint
+        long offset;
+        long checkpoint;
+
+        Incoming(long id, String name, long size, File part, long offset) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.part = part;
+            this.channel = new RandomAccessFile(part, "rw").getChannel();
+            this.offset = offset;
+            this.checkpoint = offset;
+        }
+    }
+
+    public FileTransfer(Callbacks callbacks) {
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Set where received files and their checkpoints are kept.
+     * @param directory  An existing directory, or null to refuse files
+     */
+    public synchronized void setDirectory(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Start sending a file to a connected device. If no link to it is
+     * open the file is offered when one comes up.
+     * @return  The transfer id
+     */
+    public synchronized long send(String address, File file) throws IOException {
+        long id = transferId(file);
+        if (mOutgoing.containsKey(id)) return id;
+        Outgoing out = new Outgoing(id, address, file);
+        mOutgoing.put(id, out);
+        offer(out);
+        return id;
+    }
+
+    /**
+     * A link to the address came up: offer every unfinished file again.
+     */
+    public synchronized void linkUp(String address) {
+        for (Outgoing out : mOutgoing.values()) {
+            if (out.address.equals(address) && !out.active) offer(out);
+        }
+    }
+
+    /**
+     * Give up every transfer, e.g. when the service stops.
+     */
+    public synchronized void close() {
+        for (Outgoing out : mOutgoing.values()) closeQuietly(out.channel);
+        mOutgoing.clear();
+        for (Incoming in : mIncoming.values()) {
+            try {
+                checkpoint(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot save checkpoint of " + in.name, e);
+            }
+            closeQuietly(in.channel);
+        }
+        mIncoming.clear();
+    }
+
+    /**
+     * Return true if frames of the type belong to a file transfer.
+     */
+    public static boolean isFileFrame(int type) {
+        return type == Frame.TYPE_FILE_OFFER || type == Frame.TYPE_FILE_RESUME
+                || type == Frame.TYPE_FILE_DATA;
+    }
+
+    /**
+     * Handle a file frame received from the link with the given address.
+     * @throws IOException  if the frame is malformed
+     */
+    public synchronized void onFrame(String address, int type, byte[] buffer, int offset, int length)
+            throws IOException {
+        if (length < HEADER_SIZE) throw new IOException("short file frame");
+        long id = readLong(buffer, offset);
+        long value = readLong(buffer, offset + 8);
+        switch (type) {
+        case Frame.TYPE_FILE_OFFER:
+            String name = new String(buffer, offset + HEADER_SIZE, length - HEADER_SIZE, "UTF-8");
+            onOffer(address, id, value, name);
+            break;
+        case Frame.TYPE_FILE_RESUME:
+            onResume(id, value);
+            break;
+        case Frame.TYPE_FILE_DATA:
+            onData(address, id, value, buffer, offset + HEADER_SIZE, length - HEADER_SIZE);
+            break;
+        }
+    }
+
+    private void offer(Outgoing out) {
+        byte[] name;
+        try {
+            name = out.file.getName().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] frame = new byte[HEADER_SIZE + name.length];
+        writeLong(frame, 0, out.id);
+        writeLong(frame, 8, out.size);
+        System.arraycopy(name, 0, frame, HEADER_SIZE, name.length);
+        if (mCallbacks.sendFrame(out.address, Frame.TYPE_FILE_OFFER, frame, null) != null) {
+            if (D) Log.d(TAG, "Offered " + out.file + " to " + out.address);
+        }
+    }
+
+    private void onResume(long id, long offset) {
+        Outgoing out = mOutgoing.get(id);
+        if (out == null) return;
+        if (offset < 0 || offset >= out.size) {
+            // Refused, or the receiver has it all
+            mOutgoing.remove(id);
+            closeQuietly(out.channel);
+            out.active = false;
+            if (D) Log.d(TAG, (offset < 0 ? "Refused " : "Sent ") + out.file);
+            mCallbacks.fileProgress(out.address, out.file.getName(), false, offset < 0 ? -1 : out.size,
+                    out.size);
+            return;
+        }
+        if (D) Log.d(TAG, "Sending " + out.file + " from " + offset);
+        out.offset = offset;
+        out.reported = offset;
+        out.active = true;
+        pump(out);
+    }
+
+    /**
+     * Queue data frames until CHUNKS_IN_FLIGHT are on the link.
+     */
+    private void pump(Outgoing out) {
+        while (out.active && out.inFlight < CHUNKS_IN_FLIGHT && out.offset < out.size
+                && mOutgoing.get(out.id) == out) {
+            byte[] frame;
+            try {
+                frame = readChunk(out);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read " + out.file, e);
+                mOutgoing.remove(out.id);
+                closeQuietly(out.channel);
+                mCallbacks.fileProgress(out.address, out.file.getName(), false, -1, out.size);
+                return;
+            }
+            out.offset += frame.length - HEADER_SIZE;
+            out.inFlight++;
+            if (mCallbacks.sendFrame(out.address, Frame.TYPE_FILE_DATA, frame, out) == null) {
+                out.inFlight--;
+                out.active = false;
+            }
+        }
+    }
+
+    /**
+     * Copy the next chunk out of the mapped window, moving the window on
+     * when the chunk is past its end.
+     */
+    private byte[] readChunk(Outgoing out) throws IOException {
+        int length = (int) Math.min(CHUNK_SIZE, out.size - out.offset);
+        if (out.map == null || out.offset < out.mapStart
+                || out.offset + length > out.mapStart + out.map.capacity()) {
+            out.mapStart = out.offset;
+            out.map = out.channel.map(FileChannel.MapMode.READ_ONLY, out.mapStart,
+                    Math.min(MAP_SIZE, out.size - out.mapStart));
+        }
+        byte[] frame = new byte[HEADER_SIZE + length];
+        writeLong(frame, 0, out.id);
+        writeLong(frame, 8, out.offset);
+        out.map.position((int) (out.offset - out.mapStart));
+        out.map.get(frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    private void onOffer(String address, long id, long size, String name) throws IOException {
+        Incoming in = mIncoming.get(id);
+        if (in == null && mDirectory != null && size >= 0) {
+            File part = new File(mDirectory, Long.toHexString(id) + PART_SUFFIX);
+            long offset = readCheckpoint(id, size);
+            if (offset >= size) {
+                // Received before; only the sender does not know yet
+                resume(address, id, size);
+                return;
+            }
+            try {
+                in = new Incoming(id, safeName(name), size, part, offset);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot open " + part, e);
+            }
+            if (in != null) mIncoming.put(id, in);
+        }
+        if (in == null) {
+            resume(address, id, -1);
+            return;
+        }
+        if (D) Log.d(TAG, "Receiving " + in.name + " from " + in.offset);
+        resume(address, id, in.offset);
+    }
+
+    private void onData(String address, long id, long offset, byte[] buffer, int start, int length) {
+        Incoming in = mIncoming.get(id);
+        // Only the next bytes in order are taken; the link never reorders,
+        // so anything else is left over from before a resume
+        if (in == null || offset != in.offset || length > in.size - offset) return;
+        try {
+            in.channel.write(ByteBuffer.wrap(buffer, start, length), offset);
+            in.offset += length;
+            if (in.offset < in.size && in.offset - in.checkpoint < CHECKPOINT_INTERVAL) return;
+            checkpoint(in);
+        } catch (IOException e) {
+            // Out of space, most likely; what was checkpointed stays for later
+            Log.e(TAG, "Cannot write " + in.part, e);
+            mIncoming.remove(id);
+            closeQuietly(in.channel);
+            resume(address, id, -1);
+            mCallbacks.fileProgress(address, in.name, true, -1, in.size);
+            return;
+        }
+        if (in.offset < in.size) {
+            mCallbacks.fileProgress(address, in.name, true, in.offset, in.size);
+            return;
+        }
+        mIncoming.remove(id);
+        closeQuietly(in.channel);
+        File file = uniqueFile(in.name);
+        if (!in.part.renameTo(file)) file = in.part;
+        if (D) Log.d(TAG, "Received " + file);
+        resume(address, id, in.size);
+        mCallbacks.fileProgress(address, in.name, true, in.size, in.size);
+        mCallbacks.fileReceived(address, file);
+    }
+
+    private void resume(String address, long id, long offset) {
+        byte[] frame = new byte[HEADER_SIZE];
+        writeLong(frame, 0, id);
+        writeLong(frame, 8, offset);
+        mCallbacks.sendFrame(address, Frame.TYPE_FILE_RESUME, frame, null);
+    }
+
+    /**
+     * Force the received data to disk, then record how far it goes. The
+     * checkpoint is written aside and renamed, so it is never half written.
+     */
+    private void checkpoint(Incoming in) throws IOException {
+        in.channel.force(false);
+        File file = new File(mDirectory, Long.toHexString(in.id) + CHECKPOINT_SUFFIX);
+        File tmp = new File(mDirectory, Long.toHexString(in.id) + CHECKPOINT_SUFFIX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeLong(in.size);
+            out.writeLong(in.offset);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Cannot rename " + tmp);
+        in.checkpoint = in.offset;
+    }
+
+    /**
+     * Return the offset recorded for a transfer, or 0 if there is none or
+     * it is for a file of another size.
+     */
+    private long readCheckpoint(long id, long size) {
+        File file = new File(mDirectory, Long.toHexString(id) + CHECKPOINT_SUFFIX);
+        if (!file.exists()) return 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            long checkpointSize = in.readLong();
+            long offset = in.readLong();
+            return checkpointSize == size && offset >= 0 && offset <= size ? offset : 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read checkpoint " + file, e);
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a name for a received file that clashes with no other.
+     */
+    private File uniqueFile(String name) {
+        File file = new File(mDirectory, name);
+        for (int i = 1; file.exists(); i++) file = new File(mDirectory, i + "-" + name);
+        return file;
+    }
+
+    /**
+     * Keep only the last path segment of a name sent by a peer.
+     */
+    private static String safeName(String name) {
+        name = name.substring(name.lastIndexOf('/') + 1).trim();
+        if (name.length() == 0 || name.startsWith(".")) name = "file" + name;
+        return name;
+    }
+
+    /**
+     * Derive the id of a transfer from the file, so that offering the same
+     * unchanged file again resumes the earlier transfer.
+     */
+    static long transferId(File file) {
+        long h = 0xcbf29ce484222325L;
+        String key = file.getAbsolutePath() + '\0' + file.length() + '\0' + file.lastModified();
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close() failed", e);
+        }
+    }
+
+    static void writeLong(byte[] buffer, int offset, long value) {
+        Frame.writeInt(buffer, offset, (int) (value >>> 32));
+        Frame.writeInt(buffer, offset + 4, (int) value);
+    }
+
+    static long readLong(byte[] buffer, int offset) {
+        return (long) Frame.readInt(buffer, offset) << 32 | Frame.readInt(buffer, offset + 4) & 0xffffffffL;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+/**
+ * The link level frame format. Every write on a link is one frame:
+ * <pre>
+ *   length   4 bytes  payload length, big endian
+ *   type     1 byte   what the payload is, TYPE_*
+ *   flags    1 byte   FLAG_* bits
+ *   id       4 bytes  per-link message id, big endian
+ *   payload  length bytes
+ * </pre>
+ * Frames are read back by a {@link FrameDecoder}, so a message is never
+ * split or merged with its neighbours however the stream chunks it.
+ */
+public final class Frame {
+    public static final int HEADER_SIZE = 10;
+
+    // Largest payload a peer may send; bigger messages must be fragmented
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    // Frame types
+    public static final int TYPE_PACKET = 1;   // a MeshPacket
+    public static final int TYPE_SUMMARY = 2;  // a BloomFilter of the message ids a node holds
+    public static final int TYPE_HELLO = 3;    // the sender's CAP_* bits, first frame on a link
+    public static final int TYPE_FRAGMENT = 4; // part of a larger message, see SlidingWindow
+    public static final int TYPE_ACK = 5;      // fragments received, see SlidingWindow
+    public static final int TYPE_FILE_OFFER = 6;   // a file to send, see FileTransfer
+    public static final int TYPE_FILE_RESUME = 7;  // where the receiver wants a file from
+    public static final int TYPE_FILE_DATA = 8;    // a chunk of a file
+
+    // Frame flags
+    public static final int FLAG_COMPRESSED = 0x01;  // payload is LinkCompressor output
+
+    // Capabilities announced in a HELLO frame
+    public static final int CAP_DEFLATE = 0x01;
+
+    private Frame() {
+    }
+
+    /**
+     * Build a frame around a payload in a single array, ready to be
+     * written to the link with one write() call.
+     */
+    public static byte[] encode(int type, int flags, int id, byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD) throw new IllegalArgumentException("payload too large: " + length);
+        byte[] frame = new byte[HEADER_SIZE + length];
+        writeHeader(frame, 0, type, flags, id, length);
+        System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    /**
+     * Write a frame header into a buffer.
+     */
+    public static void writeHeader(byte[] buffer, int offset, int type, int flags, int id, int length) {
+        writeInt(buffer, offset, length);
+        buffer[offset + 4] = (byte) type;
+        buffer[offset + 5] = (byte) flags;
+        writeInt(buffer, offset + 6, id);
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | buffer[offset + 3] & 0xff;
+    }
+}
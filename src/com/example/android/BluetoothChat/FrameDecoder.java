@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder for {@link Frame}s. Reads go straight into one
+ * reusable buffer and complete frames are handed to the listener as a
+ * slice of that buffer, so a frame spread over several reads is never
+ * copied piece by piece. The buffer is only compacted when a partial frame
+ * reaches its end, and only grown when a single frame does not fit.
+ */
+public class FrameDecoder {
+
+    /**
+     * Receives decoded frames. The payload slice is only valid during the
+     * call; copy it if it is needed afterwards.
+     */
+    public interface Listener {
+        void onFrame(int type, int flags, int id, byte[] buffer, int offset, int length)
+                throws IOException;
+    }
+
+    private final int mMaxPayload;
+    private byte[] mBuffer;
+    // Undecoded bytes are mBuffer[mStart, mEnd)
+    private int mStart;
+    private int mEnd;
+
+    /**
+     * @param initialCapacity  Size of the read buffer to start with
+     * @param maxPayload  Largest payload accepted; a bigger length is a protocol error
+     */
+    public FrameDecoder(int initialCapacity, int maxPayload) {
+        mBuffer = new byte[Math.max(initialCapacity, Frame.HEADER_SIZE)];
+        mMaxPayload = maxPayload;
+    }
+
+    /**
+     * Do one read from the stream and deliver every frame it completed.
+     * @return  The number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(InputStream in, Listener listener) throws IOException {
+        makeRoom();
+        int n = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (n <= 0) return n;
+        mEnd += n;
+        decode(listener);
+        return n;
+    }
+
+    /**
+     * Decode bytes that were already read elsewhere. They are copied into
+     * the decoder buffer.
+     */
+    public void feed(byte[] bytes, int offset, int length, Listener listener) throws IOException {
+        while (length > 0) {
+            makeRoom();
+            int n = Math.min(length, mBuffer.length - mEnd);
+            System.arraycopy(bytes, offset, mBuffer, mEnd, n);
+            mEnd += n;
+            offset += n;
+            length -= n;
+            decode(listener);
+        }
+    }
+
+    /**
+     * Return the number of bytes of an incomplete frame held back.
+     */
+    public int getPending() {
+        return mEnd - mStart;
+    }
+
+    private void decode(Listener listener) throws IOException {
+        while (mEnd - mStart >= Frame.HEADER_SIZE) {
+            int length = Frame.readInt(mBuffer, mStart);
+            if (length < 0 || length > mMaxPayload) {
+                throw new IOException("bad frame length " + length);
+            }
+            if (mEnd - mStart < Frame.HEADER_SIZE + length) break;
+
+            int type = mBuffer[mStart + 4] & 0xff;
+            int flags = mBuffer[mStart + 5] & 0xff;
+            int id = Frame.readInt(mBuffer, mStart + 6);
+            int payload = mStart + Frame.HEADER_SIZE;
+            mStart = payload + length;
+            listener.onFrame(type, flags, id, mBuffer, payload, length);
+        }
+        if (mStart == mEnd) {
+            // Everything consumed, start over at the front for free
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+    /**
+     * Make sure there is space after mEnd to read into, and that the
+     * current partial frame can be completed within the buffer.
+     */
+    private void makeRoom() {
+        int pending = mEnd - mStart;
+        int needed = Frame.HEADER_SIZE;
+        if (pending >= Frame.HEADER_SIZE) {
+            needed += Frame.readInt(mBuffer, mStart);
+        }
+        if (mStart + needed <= mBuffer.length && mEnd < mBuffer.length) return;
+
+        byte[] target = mBuffer;
+        if (needed > mBuffer.length) {
+            int capacity = mBuffer.length;
+            while (capacity < needed) capacity *= 2;
+            target = new byte[capacity];
+        }
+        System.arraycopy(mBuffer, mStart, target, 0, pending);
+        mBuffer = target;
+        mStart = 0;
+        mEnd = pending;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A point-to-point byte stream between this node and one remote node.
+ * This is what BluetoothChatService runs its connect and read/write logic
+ * against, so the same code drives an RFCOMM socket on a phone and a pipe
+ * or loopback socket on a desktop JVM.
+ */
+public interface Link {
+
+    /**
+     * Establish the connection. This is a blocking call and will only
+     * return on a successful connection or an exception. Links handed out
+     * by {@link LinkServer#accept()} are already connected and return at once.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return the address of the remote end, in the form accepted by
+     * {@link LinkTransport#createLink(String)}.
+     */
+    String getRemoteAddress();
+
+    /**
+     * Return a human readable name of the remote end.
+     */
+    String getRemoteName();
+
+    /**
+     * Close the link. Safe to call from another thread to abort a blocking
+     * connect() or read().
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Connect latency and throughput measurements over a LinkTransport. It has
+ * no Android dependencies so it runs on a plain JVM against the pipe and
+ * loopback transports, e.g.
+ * <pre>java -cp bin/classes com.example.android.BluetoothChat.LinkBenchmark</pre>
+ */
+public class LinkBenchmark {
+    private final LinkTransport mServerTransport;
+    private final LinkTransport mClientTransport;
+    private final String mAddress;
+    // Runs the delayed flushes when writes are coalesced, at the app's resolution
+    private final TimingWheel mFlushTimers =
+            new TimingWheel("FlushTimer", BluetoothChatService.TIMER_TICK);
+
+    /**
+     * @param serverTransport  Transport whose listen() end is measured
+     * @param clientTransport  Transport used to connect to it
+     * @param address  Address of the server end as seen by the client transport
+     */
+    public LinkBenchmark(LinkTransport serverTransport, LinkTransport clientTransport, String address) {
+        mServerTransport = serverTransport;
+        mClientTransport = clientTransport;
+        mAddress = address;
+    }
+
+    /**
+     * Open and close a link repeatedly.
+     * @param rounds  Number of connects to measure
+     * @return  Connect latencies in nanoseconds, sorted ascending
+     */
+    public long[] measureConnect(LinkServer server, int rounds) throws IOException {
+        long[] samples = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            Link link = mClientTransport.createLink(mAddress);
+            long start = System.nanoTime();
+            link.connect();
+            Link accepted = server.accept();
+            samples[i] = System.nanoTime() - start;
+            link.close();
+            accepted.close();
+        }
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    /**
+     * Return the link's output stream, wrapped in a coalescing writer
+     * unless the delay is negative.
+     */
+    private OutputStream openOutput(Link link, long coalesceDelay) throws IOException {
+        OutputStream out = link.getOutputStream();
+        if (coalesceDelay < 0) return out;
+        return new CoalescingOutputStream(out, BluetoothChatService.LINK_MTU, coalesceDelay, mFlushTimers);
+    }
+
+    /**
+     * Send small messages one at a time and wait for each to be echoed.
+     * @param coalesceDelay  Flush delay of a coalescing writer, or -1 to write directly
+     * @return  Round trip times in nanoseconds, sorted ascending
+     */
+    public long[] measureLatency(LinkServer server, int messageSize, int rounds, long coalesceDelay)
+            throws IOException {
+        final Link link = mClientTransport.createLink(mAddress);
+        link.connect();
+        final Link accepted = server.accept();
+        final int size = messageSize;
+
+        Thread echo = new Thread("BenchmarkEcho") {
+            public void run() {
+                byte[] buffer = new byte[size];
+                try {
+                    InputStream in = accepted.getInputStream();
+                    OutputStream out = accepted.getOutputStream();
+                    while (readFully(in, buffer)) {
+                        out.write(buffer);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // The link was closed, the measurement is over
+                }
+            }
+        };
+        echo.start();
+
+        long[] samples = new long[rounds];
+        byte[] message = new byte[messageSize];
+        InputStream in = link.getInputStream();
+        OutputStream out = openOutput(link, coalesceDelay);
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            out.write(message);
+            if (!readFully(in, message)) throw new IOException("echo closed");
+            samples[i] = System.nanoTime() - start;
+        }
+        link.close();
+        accepted.close();
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int n = in.read(buffer, count, buffer.length - count);
+            if (n < 0) return false;
+            count += n;
+        }
+        return true;
+    }
+
+    /**
+     * Push messages of a fixed size through one link and wait until the
+     * other end has read all of them.
+     * @param coalesceDelay  Flush delay of a coalescing writer, or -1 to write directly
+     * @return  Throughput in bytes per second
+     */
+    public double measureThroughput(LinkServer server, int messageSize, int messages,
+            long coalesceDelay) throws IOException {
+        final Link link = mClientTransport.createLink(mAddress);
+        link.connect();
+        final Link accepted = server.accept();
+        final long total = (long) messageSize * messages;
+        final long[] received = new long[1];
+
+        Thread reader = new Thread("BenchmarkReader") {
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = accepted.getInputStream();
+                    while (received[0] < total) {
+                        int n = in.read(buffer);
+                        if (n < 0) break;
+                        received[0] += n;
+                    }
+                } catch (IOException e) {
+                    // Falls through, the short count is reported below
+                }
+            }
+        };
+
+        byte[] message = new byte[messageSize];
+        long start = System.nanoTime();
+        reader.start();
+        OutputStream out = openOutput(link, coalesceDelay);
+        for (int i = 0; i < messages; i++) {
+            out.write(message);
+        }
+        out.flush();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long elapsed = System.nanoTime() - start;
+        link.close();
+        accepted.close();
+        if (received[0] < total) throw new IOException("short read: " + received[0] + "/" + total);
+        return total * 1e9 / elapsed;
+    }
+
+    /**
+     * Run the connect and throughput measurements and print a summary line.
+     */
+    public void run(String label) throws IOException {
+        LinkServer server = mServerTransport.listen();
+        mFlushTimers.start();
+        try {
+            long delay = BluetoothChatService.FLUSH_DELAY;
+            long[] connect = measureConnect(server, 200);
+            double small = measureThroughput(server, 64, 20000, -1);
+            double coalesced = measureThroughput(server, 64, 20000, delay);
+            double large = measureThroughput(server, 4096, 2000, -1);
+            long[] rtt = measureLatency(server, 64, 200, -1);
+            long[] coalescedRtt = measureLatency(server, 64, 200, delay);
+            System.out.println(label
+                    + " connect p50=" + connect[connect.length / 2] / 1000 + "us"
+                    + " p99=" + connect[connect.length * 99 / 100] / 1000 + "us"
+                    + " 64B=" + (long) (small / 1024) + "KB/s"
+                    + " 64B coalesced=" + (long) (coalesced / 1024) + "KB/s"
+                    + " 4KB=" + (long) (large / 1024) + "KB/s"
+                    + " rtt p50=" + rtt[rtt.length / 2] / 1000 + "us"
+                    + " coalesced rtt p50=" + coalescedRtt[coalescedRtt.length / 2] / 1000 + "us"
+                    + " (flush delay " + delay + "ms)");
+        } finally {
+            server.close();
+            mFlushTimers.stop();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        new LinkBenchmark(new PipeLinkTransport("bench-server"),
+                new PipeLinkTransport("bench-client"), "bench-server").run("pipe");
+
+        TcpLinkTransport tcp = new TcpLinkTransport(0);
+        TcpLinkTransport.TcpServer probe = (TcpLinkTransport.TcpServer) tcp.listen();
+        String address = probe.getAddress();
+        probe.close();
+        int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        new LinkBenchmark(new TcpLinkTransport(port), tcp, address).run("tcp");
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-link DEFLATE compression of frame payloads. Every frame is
+ * compressed on its own against a preset dictionary of the strings chat
+ * messages and mesh packets are made of, so even short messages shrink and
+ * a lost frame never breaks the next one.
+ * <p>
+ * A compressed payload is the original length (4 bytes) followed by the
+ * raw deflate data. An instance is not synchronized; a link uses one for
+ * writing and one for reading, and only the zlib state a side needs is
+ * allocated.
+ */
+public class LinkCompressor {
+    // Payloads shorter than this are sent as they are
+    public static final int MIN_SIZE = 48;
+
+    // Most frequent strings last, deflate finds near matches cheaper
+    private static final byte[] DICTIONARY = latin1(
+            "http://www. .com .pl .jpg .png "
+            + "dziekuje prosze dobrze jestem gdzie kiedy jutro dzisiaj wiadomosc "
+            + "tak nie czesc siema jak co to jest ze sie na w i "
+            + "thanks please where when tomorrow today tonight message "
+            + "yes no ok okay hello hi hey how are you what the is it and to of "
+            + ":) :( :D ?! ... "
+            + "GT-I9000 Nexus Galaxy Xperia HTC Android "
+            // MeshPacket header of a data packet and an unknown sequence number
+            + "\u00ff\u00ff\u00ff\u00ff\u0000\u0000\u0000\u0000M\u0001\u0000\u0010\u0001");
+
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private byte[] mOut = new byte[1024];
+
+    /**
+     * Compress a payload.
+     * @return  The compressed payload, or null if the payload is too short
+     *          or does not get smaller
+     */
+    public byte[] compress(byte[] buffer, int offset, int length) {
+        if (length < MIN_SIZE) return null;
+        // Anything that does not save at least the length prefix is not worth it
+        int limit = length - 4 - 1;
+        if (mOut.length < limit) mOut = new byte[limit];
+
+        if (mDeflater == null) mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(buffer, offset, length);
+        mDeflater.finish();
+        int size = 4;
+        while (!mDeflater.finished()) {
+            if (size >= limit) return null;
+            size += mDeflater.deflate(mOut, size, limit - size);
+        }
+        Frame.writeInt(mOut, 0, length);
+        byte[] out = new byte[size];
+        System.arraycopy(mOut, 0, out, 0, size);
+        return out;
+    }
+
+    /**
+     * Return the uncompressed length of a compressed payload.
+     */
+    public static int getOriginalLength(byte[] buffer, int offset, int length) throws IOException {
+        if (length < 4) throw new IOException("compressed payload too short");
+        int original = Frame.readInt(buffer, offset);
+        if (original < 0 || original > Frame.MAX_PAYLOAD) {
+            throw new IOException("bad compressed payload length: " + original);
+        }
+        return original;
+    }
+
+    /**
+     * Decompress a payload into a buffer of at least getOriginalLength() bytes.
+     * @return  The uncompressed length
+     */
+    public int decompress(byte[] buffer, int offset, int length, byte[] out) throws IOException {
+        int original = getOriginalLength(buffer, offset, length);
+        if (mInflater == null) mInflater = new Inflater(true);
+        mInflater.reset();
+        mInflater.setDictionary(DICTIONARY);
+        mInflater.setInput(buffer, offset + 4, length - 4);
+        try {
+            int size = 0;
+            while (size < original) {
+                int n = mInflater.inflate(out, size, original - size);
+                if (n == 0 && (mInflater.finished() || mInflater.needsInput())) break;
+                size += n;
+            }
+            if (size != original) throw new IOException("compressed payload truncated");
+            return size;
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed payload: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Free the native zlib state. The compressor cannot be used afterwards.
+     */
+    public void end() {
+        if (mDeflater != null) mDeflater.end();
+        if (mInflater != null) mInflater.end();
+    }
+
+    private static byte[] latin1(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
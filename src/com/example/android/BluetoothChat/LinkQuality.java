@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Link quality estimates per neighbor, for picking reliable hops. Each
+ * link gets an ETX-style metric, the expected number of attempts to get
+ * a message across: 1 / p, where p is the product of
+ * <ul>
+ * <li>the connect success rate, from the service's connect attempts,
+ * <li>the write success rate, from the frames written on open links,
+ * <li>a delivery probability from the signal strength seen by inquiry.
+ * </ul>
+ * The rates are moving averages, so recent behaviour counts most. A link
+ * nothing is known about counts as perfect, like a hop does in a plain
+ * hop count. Metrics are integers, METRIC_SCALE per expected attempt, so
+ * they can be summed along a path and carried in packets.
+ * <p>
+ * Thread safe; samples come from the link tasks and the UI thread.
+ */
+public class LinkQuality {
+    // Metric of a perfect link, and the most one link can cost
+    public static final int METRIC_SCALE = 100;
+    public static final int MAX_LINK_METRIC = 10 * METRIC_SCALE;
+
+    // Weight of a new sample in the moving averages
+    private static final double ALPHA = 0.25;
+    // Signal at or above RSSI_GOOD is taken as lossless, at RSSI_BAD a
+    // message gets across with RSSI_BAD_DELIVERY, with a straight line between
+    private static final int RSSI_GOOD = -60;
+    private static final int RSSI_BAD = -90;
+    private static final double RSSI_BAD_DELIVERY = 0.3;
+    // Estimates not updated for this long are forgotten
+    private static final long EXPIRY = 30 * 60 * 1000;
+
+    /**
+     * What is known about the link to one neighbor.
+     */
+    public static class Link {
+        public final String address;
+        // Averaged signal strength in dBm, or NeighborTable.RSSI_UNKNOWN
+        public double rssi = NeighborTable.RSSI_UNKNOWN;
+        public double connectRate = 1;
+        public double writeRate = 1;
+        // Totals, for display
+        public int connects;
+        public int connectFailures;
+        public int writeFailures;
+        // SystemClock.elapsedRealtime() of the last sample
+        public long updated;
+
+        Link(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Return the chance that a message gets across the link.
+         */
+        public double getDeliveryRatio() {
+            double p = connectRate * writeRate;
+            if (rssi != NeighborTable.RSSI_UNKNOWN && rssi < RSSI_GOOD) {
+                double bad = Math.min(1, (RSSI_GOOD - rssi) / (RSSI_GOOD - RSSI_BAD));
+                p *= 1 - bad * (1 - RSSI_BAD_DELIVERY);
+            }
+            return p;
+        }
+
+        /**
+         * Return the link metric, METRIC_SCALE for a perfect link.
+         */
+        public int getMetric() {
+            double p = getDeliveryRatio();
+            if (p * MAX_LINK_METRIC <= METRIC_SCALE) return MAX_LINK_METRIC;
+            return (int) Math.round(METRIC_SCALE / p);
+        }
+
+        @Override
+        public String toString() {
+            return address + " etx=" + (getMetric() / (double) METRIC_SCALE)
+                    + (rssi == NeighborTable.RSSI_UNKNOWN ? "" : " rssi=" + Math.round(rssi))
+                    + " connects=" + connects + "/" + (connects + connectFailures)
+                    + " writeFailures=" + writeFailures;
+        }
+    }
+
+    private final HashMap<String, Link> mLinks = new HashMap<String, Link>();
+
+    /**
+     * Record the signal strength of a neighbor seen by inquiry.
+     */
+    public synchronized void rssiSample(String address, int rssi, long now) {
+        if (rssi == NeighborTable.RSSI_UNKNOWN) return;
+        Link link = link(address, now);
+        link.rssi = link.rssi == NeighborTable.RSSI_UNKNOWN ? rssi : average(link.rssi, rssi);
+    }
+
+    /**
+     * Record the outcome of a connect attempt.
+     */
+    public synchronized void connectResult(String address, boolean connected, long now) {
+        Link link = link(address, now);
+        link.connectRate = average(link.connectRate, connected ? 1 : 0);
+        if (connected) link.connects++;
+        else link.connectFailures++;
+    }
+
+    /**
+     * Record the outcome of a write on an open link.
+     */
+    public synchronized void writeResult(String address, boolean written, long now) {
+        Link link = link(address, now);
+        link.writeRate = average(link.writeRate, written ? 1 : 0);
+        if (!written) link.writeFailures++;
+    }
+
+    /**
+     * Return the metric of the link to a neighbor, METRIC_SCALE if nothing
+     * is known about it.
+     */
+    public synchronized int getMetric(String address) {
+        Link link = mLinks.get(address);
+        return link == null ? METRIC_SCALE : link.getMetric();
+    }
+
+    /**
+     * Return what is known about the link to a neighbor, or null.
+     */
+    public synchronized Link get(String address) {
+        return mLinks.get(address);
+    }
+
+    /**
+     * Forget estimates that were not updated for a long time.
+     */
+    public synchronized void purge(long now) {
+        Iterator<Link> it = mLinks.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().updated >= EXPIRY) it.remove();
+        }
+    }
+
+    private Link link(String address, long now) {
+        Link link = mLinks.get(address);
+        if (link == null) {
+            link = new Link(address);
+            mLinks.put(address, link);
+        }
+        link.updated = now;
+        return link;
+    }
+
+    private static double average(double average, double sample) {
+        return average + ALPHA * (sample - average);
+    }
+}
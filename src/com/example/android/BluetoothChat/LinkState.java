@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of one link. It only changes by compare-and-set, so the
+ * connecting, reading, writing and cancelling threads agree on who owns a
+ * transition without sharing a lock:
+ * <pre>
+ *   NEW -> CONNECTING -> CONNECTED -> CLOSING -> CLOSED
+ *   NEW -> CONNECTED          (an accepted link)
+ *   CONNECTING -> CLOSED      (the connect failed)
+ *   CONNECTING -> CLOSING     (the connect was cancelled)
+ *   CONNECTED -> CLOSED       (the link broke)
+ * </pre>
+ */
+public class LinkState {
+    public static final int NEW = 0;
+    public static final int CONNECTING = 1;
+    public static final int CONNECTED = 2;
+    public static final int CLOSING = 3;
+    public static final int CLOSED = 4;
+
+    /**
+     * Told about every transition, on the thread that made it.
+     */
+    public interface Listener {
+        void onLinkStateChanged(LinkState link, int from, int to);
+    }
+
+    private final String mAddress;
+    private final AtomicInteger mState = new AtomicInteger(NEW);
+    private final Listener mListener;
+
+    /**
+     * @param address  The remote address of the link
+     * @param listener  Told about transitions, may be null
+     */
+    public LinkState(String address, Listener listener) {
+        mAddress = address;
+        mListener = listener;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * Move from one state to another.
+     * @return  false if the link was not in the expected state; nothing changed
+     */
+    public boolean transition(int from, int to) {
+        if (!mState.compareAndSet(from, to)) return false;
+        if (mListener != null) mListener.onLinkStateChanged(this, from, to);
+        return true;
+    }
+
+    /**
+     * Move to CLOSED from whatever state the link is in.
+     * @return  The state the link was in
+     */
+    public int close() {
+        int from = mState.getAndSet(CLOSED);
+        if (from != CLOSED && mListener != null) mListener.onLinkStateChanged(this, from, CLOSED);
+        return from;
+    }
+
+    public static String name(int state) {
+        switch (state) {
+        case NEW: return "NEW";
+        case CONNECTING: return "CONNECTING";
+        case CONNECTED: return "CONNECTED";
+        case CLOSING: return "CLOSING";
+        case CLOSED: return "CLOSED";
+        default: return "state " + state;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mAddress + " " + name(get());
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+
+/**
+ * Factory for the links BluetoothChatService uses. The production
+ * implementation is {@link BluetoothLinkTransport}; {@link PipeLinkTransport}
+ * and {@link TcpLinkTransport} stand in for it when measuring the service
+ * off-device.
+ */
+public interface LinkTransport {
+
+    /**
+     * Open a server endpoint that accepts incoming links.
+     */
+    LinkServer listen() throws IOException;
+
+    /**
+     * Create an unconnected link to the given address. Call
+     * {@link Link#connect()} to actually open it.
+     * @param address  Transport specific address of the remote node
+     */
+    Link createLink(String address) throws IOException;
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A packet of the mesh network layer: either a chat message travelling
+ * hop by hop towards its destination, one of the AODV route control
+ * messages (RREQ, RREP, RERR) or one of the OLSR ones (HELLO, TC).
+ */
+public class MeshPacket {
+    // Packet types
+    public static final int TYPE_DATA = 1;
+    public static final int TYPE_RREQ = 2;
+    public static final int TYPE_RREP = 3;
+    public static final int TYPE_RERR = 4;
+    public static final int TYPE_HELLO = 5;
+    public static final int TYPE_TC = 6;
+
+    // Sequence number value for "destination sequence number unknown"
+    public static final int SEQ_UNKNOWN = -1;
+
+    // Hop limit for packets that do not ask for a smaller one
+    public static final int DEFAULT_TTL = 16;
+
+    // First byte of every encoded packet
+    private static final int MAGIC = 0x4d;
+
+    public int type;
+    // Hops travelled so far and hops left to travel
+    public int hopCount;
+    public int ttl = DEFAULT_TTL;
+    // Spray-and-wait: copies of a data packet this node may still hand out
+    public int copies = 1;
+    // Route requests and replies: sum of the link metrics travelled so far,
+    // see LinkQuality
+    public int metric;
+    // The node that created the packet and its sequence number
+    public String originator;
+    public int originatorSeq = SEQ_UNKNOWN;
+    // The node the packet is for (for RERR: the node that became unreachable)
+    public String destination;
+    public int destinationSeq = SEQ_UNKNOWN;
+    // RREQ id for route requests, message number for data
+    public int id;
+    // Names of the nodes that forwarded the packet so far, oldest first
+    public List<String> path = new ArrayList<String>();
+    public byte[] payload;
+    // Routing entries of the node that sent this copy, piggybacked on data
+    // packets; per hop, so copies do not inherit it
+    public byte[] gossip;
+
+    public MeshPacket(int type, String originator, String destination) {
+        this.type = type;
+        this.originator = originator;
+        this.destination = destination;
+    }
+
+    /**
+     * Copy constructor, used when a packet is forwarded.
+     */
+    public MeshPacket(MeshPacket other) {
+        type = other.type;
+        hopCount = other.hopCount;
+        ttl = other.ttl;
+        copies = other.copies;
+        metric = other.metric;
+        originator = other.originator;
+        originatorSeq = other.originatorSeq;
+        destination = other.destination;
+        destinationSeq = other.destinationSeq;
+        id = other.id;
+        path = new ArrayList<String>(other.path);
+        payload = other.payload;
+    }
+
+    public boolean isControl() {
+        return type != TYPE_DATA;
+    }
+
+    /**
+     * Return true if encoded packet bytes hold a route control packet,
+     * without decoding them.
+     */
+    public static boolean isControl(byte[] data) {
+        return data.length > 1 && (data[0] & 0xff) == MAGIC && data[1] != TYPE_DATA;
+    }
+
+    /**
+     * Return an id for the message that is the same on every node:
+     * the originator name hash in the high half, its message number in the low.
+     */
+    public long getMessageKey() {
+        return (long) originator.hashCode() << 32 | (id & 0xffffffffL);
+    }
+
+    /**
+     * Return true for packets that reach a node over many paths and must be
+     * handled once: route requests and chat messages.
+     */
+    public boolean isFlooded() {
+        return type == TYPE_RREQ || type == TYPE_DATA;
+    }
+
+    /**
+     * Return the key all copies of a flooded packet share: the message key
+     * with the packet type in the top byte, since RREQ ids and message
+     * numbers are counted separately.
+     */
+    public long getFloodKey() {
+        return getMessageKey() ^ (long) type << 56;
+    }
+
+    /**
+     * Serialize the packet for sending over a link.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (payload == null ? 0 : payload.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(MAGIC);
+            out.writeByte(type);
+            out.writeByte(hopCount);
+            out.writeByte(ttl);
+            out.writeByte(copies);
+            out.writeShort(Math.min(metric, 0xffff));
+            out.writeUTF(originator);
+            out.writeInt(originatorSeq);
+            out.writeUTF(destination);
+            out.writeInt(destinationSeq);
+            out.writeInt(id);
+            out.writeByte(path.size());
+            for (String hop : path) out.writeUTF(hop);
+            if (payload == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            // Optional trailer, older nodes stop reading before it
+            if (gossip != null) {
+                out.writeShort(gossip.length);
+                out.write(gossip);
+            }
+        } catch (IOException e) {
+            // Cannot happen when writing to a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parse a packet received from a link.
+     * @return  The packet, or null if the bytes are not a valid packet
+     */
+    public static MeshPacket decode(byte[] buffer, int offset, int length) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, offset, length));
+        try {
+            if (in.readUnsignedByte() != MAGIC) return null;
+            int type = in.readUnsignedByte();
+            int hopCount = in.readUnsignedByte();
+            int ttl = in.readUnsignedByte();
+            int copies = in.readUnsignedByte();
+            int metric = in.readUnsignedShort();
+            MeshPacket packet = new MeshPacket(type, in.readUTF(), null);
+            packet.hopCount = hopCount;
+            packet.ttl = ttl;
+            packet.copies = copies;
+            packet.metric = metric;
+            packet.originatorSeq = in.readInt();
+            packet.destination = in.readUTF();
+            packet.destinationSeq = in.readInt();
+            packet.id = in.readInt();
+            int pathLength = in.readUnsignedByte();
+            for (int i = 0; i < pathLength; i++) packet.path.add(in.readUTF());
+            int payloadLength = in.readInt();
+            if (payloadLength < 0 || payloadLength > in.available()) return null;
+            if (payloadLength > 0) {
+                packet.payload = new byte[payloadLength];
+                in.readFully(packet.payload);
+            }
+            if (in.available() >= 2) {
+                int gossipLength = in.readUnsignedShort();
+                if (gossipLength > in.available()) return null;
+                packet.gossip = new byte[gossipLength];
+                in.readFully(packet.gossip);
+            }
+            return packet;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compare two sequence numbers allowing for wrap-around.
+     * @return  true if a is newer than b
+     */
+    public static boolean isNewer(int a, int b) {
+        return a - b > 0;
+    }
+
+    public static String typeName(int type) {
+        switch (type) {
+        case TYPE_DATA: return "DATA";
+        case TYPE_RREQ: return "RREQ";
+        case TYPE_RREP: return "RREP";
+        case TYPE_RERR: return "RERR";
+        case TYPE_HELLO: return "HELLO";
+        case TYPE_TC: return "TC";
+        default: return "type " + type;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return typeName(type) + " " + originator + "#" + originatorSeq + " -> "
+                + destination + "#" + destinationSeq + " hops=" + hopCount + " ttl=" + ttl
+                + (metric == 0 ? "" : " metric=" + metric);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.List;
+
+/**
+ * A router for chat messages between mesh nodes, as the UI Activity drives
+ * it: {@link AodvRouter} finds routes on demand, {@link OlsrRouter} keeps
+ * them up to date all the time. Routers do no I/O themselves; packets
+ * leave through the {@link Callbacks} and time only advances when the
+ * owner calls tick().
+ */
+public interface MeshRouter {
+    /**
+     * Where the router hands its packets and results.
+     */
+    public interface Callbacks {
+        /** Send a packet to the neighbor with the given link address. */
+        void sendPacket(String nextHop, MeshPacket packet);
+        /** Send a packet to every known neighbor. */
+        void broadcastPacket(MeshPacket packet);
+        /** A data packet addressed to this node arrived. */
+        void deliverPacket(MeshPacket packet);
+        /** A route to the destination is now known and buffered data was sent. */
+        void routeFound(String destination, RouteEntry route);
+        /** No route to the destination could be found; the packets were not sent. */
+        void routeFailed(String destination, List<MeshPacket> undelivered);
+    }
+
+    /**
+     * Return the name of this node, as other nodes address it.
+     */
+    String getLocalName();
+
+    /**
+     * Return a usable route to the destination, or null.
+     */
+    RouteEntry findRoute(String destination, long now);
+
+    /**
+     * Record a neighbor found by inquiry.
+     * @param name  The neighbor's node name
+     * @param address  The neighbor's link address
+     */
+    void neighborSeen(String name, String address, long now);
+
+    /**
+     * A link to a neighbor was opened, by either side.
+     */
+    void linkUp(String name, String address, long now);
+
+    /**
+     * The link to a neighbor was closed in an orderly way, e.g. while idle.
+     */
+    void linkDown(String address, long now);
+
+    /**
+     * The link to a neighbor failed.
+     */
+    void linkBroken(String address, long now);
+
+    /**
+     * Send a chat message. If a route exists the packet goes out at once,
+     * otherwise it is buffered until one is found.
+     * @return  true if the message was sent, false if it was buffered
+     */
+    boolean sendData(String destination, byte[] payload, long now);
+
+    /**
+     * Send a packet that was already built, e.g. one kept in the message
+     * store. Nothing is buffered if there is no route.
+     * @return  true if the packet was sent
+     */
+    boolean resend(MeshPacket packet, long now);
+
+    /**
+     * Return the destinations that have messages waiting for a route.
+     */
+    List<String> getPendingDestinations();
+
+    /**
+     * Find a route for buffered messages; they are sent once there is one.
+     */
+    void requestRoute(String destination, long now);
+
+    /**
+     * Process a packet received from a neighbor.
+     * @param fromAddress  Link address of the neighbor that sent it
+     * @param fromName  Node name of that neighbor, if known
+     */
+    void handlePacket(MeshPacket packet, String fromAddress, String fromName, long now);
+
+    /**
+     * Advance the router's timers.
+     */
+    void tick(long now);
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Store-and-forward message store. Messages that cannot be delivered yet
+ * are appended to memory mapped segment files and indexed in memory by
+ * destination and id; they stay until a route or contact to the destination
+ * appears, or until they expire. Each message has its own expiry timer, so
+ * nothing scans the store for expired messages. The log survives process
+ * restarts and is re-indexed by scanning the segments when the store is opened.
+ * <p>
+ * Record layout inside a segment:
+ * <pre>
+ *   status     1 byte   STATUS_LIVE or STATUS_DELETED; 0 marks the end of the log
+ *   length     4 bytes  length of the whole record
+ *   expiresAt  8 bytes  wall clock time after which the message is dropped
+ *   id         8 bytes  message id, see MeshPacket#getMessageKey()
+ *   destLength 2 bytes  followed by the UTF-8 destination name
+ *   data       the rest of the record
+ * </pre>
+ */
+public class MessageStore {
+    // Debugging
+    private static final String TAG = "MessageStore";
+    private static final boolean D = true;
+
+    // Size of each segment file
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final byte STATUS_END = 0;
+    private static final byte STATUS_LIVE = 1;
+    private static final byte STATUS_DELETED = 2;
+    private static final int RECORD_HEADER = 1 + 4 + 8 + 8 + 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Index entry of a stored message.
+     */
+    public static class StoredMessage {
+        public final String destination;
+        public final long id;
+        public final long expiresAt;
+        private final Segment mSegment;
+        private final int mOffset;
+        private final int mLength;
+        // Drops the message at expiresAt, null while the store has no timers
+        private TimingWheel.Timeout mExpiry;
+
+        StoredMessage(String destination, long id, long expiresAt, Segment segment,
+                int offset, int length) {
+            this.destination = destination;
+            this.id = id;
+            this.expiresAt = expiresAt;
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    // One mapped segment file
+    private static class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        // Write position and number of live records
+        int end;
+        int live;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < SEGMENT_SIZE) raf.setLength(SEGMENT_SIZE);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+
+        void close() {
+            buffer.force();
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of " + file + " failed", e);
+            }
+        }
+    }
+
+    private final File mDir;
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private Segment mActive;
+    private int mNextSegment;
+
+    private final HashMap<String, List<StoredMessage>> mByDestination =
+            new HashMap<String, List<StoredMessage>>();
+    private final HashMap<Long, StoredMessage> mById = new HashMap<Long, StoredMessage>();
+    private TimingWheel mTimers;
+
+    /**
+     * Open the store in a directory, indexing the messages already in it.
+     */
+    public MessageStore(File dir) throws IOException {
+        mDir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+
+        String[] names = dir.list();
+        if (names == null) throw new IOException("cannot list " + dir);
+        Arrays.sort(names);
+        long now = System.currentTimeMillis();
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+            int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            mNextSegment = Math.max(mNextSegment, number + 1);
+            Segment segment = new Segment(new File(dir, name));
+            scan(segment, now);
+            if (segment.live == 0) {
+                deleteSegment(segment);
+            } else {
+                mSegments.add(segment);
+            }
+        }
+        // Keep appending where the log ended
+        if (!mSegments.isEmpty()) mActive = mSegments.get(mSegments.size() - 1);
+        if (D) Log.d(TAG, "opened " + dir + ": " + mById.size() + " messages");
+    }
+
+    private void scan(Segment segment, long now) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + RECORD_HEADER <= SEGMENT_SIZE) {
+            byte status = buffer.get(offset);
+            if (status == STATUS_END) break;
+            int length = buffer.getInt(offset + 1);
+            if (length < RECORD_HEADER || offset + length > SEGMENT_SIZE) {
+                // Torn write at the end of the log
+                break;
+            }
+            if (status == STATUS_LIVE) {
+                long expiresAt = buffer.getLong(offset + 5);
+                long id = buffer.getLong(offset + 13);
+                int destLength = buffer.getShort(offset + 21) & 0xffff;
+                byte[] dest = new byte[destLength];
+                for (int i = 0; i < destLength; i++) dest[i] = buffer.get(offset + RECORD_HEADER + i);
+                if (now >= expiresAt || mById.containsKey(id)) {
+                    buffer.put(offset, STATUS_DELETED);
+                } else {
+                    index(new StoredMessage(utf8(dest), id, expiresAt, segment, offset, length));
+                    segment.live++;
+                }
+            }
+            offset += length;
+        }
+        segment.end = offset;
+    }
+
+    private void index(StoredMessage message) {
+        List<StoredMessage> list = mByDestination.get(message.destination);
+        if (list == null) {
+            list = new ArrayList<StoredMessage>();
+            mByDestination.put(message.destination, list);
+        }
+        list.add(message);
+        mById.put(message.id, message);
+        if (mTimers != null) startExpiry(message);
+    }
+
+    /**
+     * Drop messages when they expire, from now on on the given timers.
+     */
+    public synchronized void setTimers(TimingWheel timers) {
+        mTimers = timers;
+        for (StoredMessage message : mById.values()) startExpiry(message);
+    }
+
+    private void startExpiry(final StoredMessage message) {
+        if (message.mExpiry != null) message.mExpiry.cancel();
+        message.mExpiry = mTimers.schedule(new Runnable() {
+            public void run() {
+                if (D) Log.d(TAG, "message " + message.id + " expired");
+                remove(message);
+            }
+        }, message.expiresAt - System.currentTimeMillis());
+    }
+
+    /**
+     * Append a message to the log.
+     * @param destination  The node the message is for
+     * @param id  Unique message id; a message already stored is not added twice
+     * @param data  The message bytes, e.g. an encoded MeshPacket
+     * @param expiresAt  Wall clock time after which the message is dropped
+     * @return  false if a message with that id is already stored
+     */
+    public synchronized boolean append(String destination, long id, byte[] data, long expiresAt)
+            throws IOException {
+        if (mById.containsKey(id)) return false;
+        byte[] dest = destination.getBytes("UTF-8");
+        int length = RECORD_HEADER + dest.length + data.length;
+        if (length > SEGMENT_SIZE) throw new IOException("message too large: " + data.length);
+
+        if (mActive == null || mActive.end + length > SEGMENT_SIZE) {
+            mActive = new Segment(new File(mDir, String.format("%s%08d%s",
+                    SEGMENT_PREFIX, mNextSegment++, SEGMENT_SUFFIX)));
+            mSegments.add(mActive);
+        }
+
+        // Write the body first and the status byte last, so a record torn
+        // by a crash is never taken for a live one
+        MappedByteBuffer buffer = mActive.buffer;
+        int offset = mActive.end;
+        buffer.putInt(offset + 1, length);
+        buffer.putLong(offset + 5, expiresAt);
+        buffer.putLong(offset + 13, id);
+        buffer.putShort(offset + 21, (short) dest.length);
+        buffer.position(offset + RECORD_HEADER);
+        buffer.put(dest);
+        buffer.put(data);
+        buffer.put(offset, STATUS_LIVE);
+        mActive.end = offset + length;
+        mActive.live++;
+
+        index(new StoredMessage(destination, id, expiresAt, mActive, offset, length));
+        return true;
+    }
+
+    /**
+     * Return true if a message with the given id is stored.
+     */
+    public synchronized boolean contains(long id) {
+        return mById.containsKey(id);
+    }
+
+    /**
+     * Return the stored message with the given id, or null.
+     */
+    public synchronized StoredMessage get(long id) {
+        return mById.get(id);
+    }
+
+    /**
+     * Return the destinations that have stored messages.
+     */
+    public synchronized Set<String> getDestinations() {
+        return new HashSet<String>(mByDestination.keySet());
+    }
+
+    /**
+     * Return the messages stored for a destination, oldest first.
+     */
+    public synchronized List<StoredMessage> getMessages(String destination) {
+        List<StoredMessage> list = mByDestination.get(destination);
+        return list == null ? new ArrayList<StoredMessage>() : new ArrayList<StoredMessage>(list);
+    }
+
+    /**
+     * Return the ids of all stored messages.
+     */
+    public synchronized long[] getIds() {
+        long[] ids = new long[mById.size()];
+        int i = 0;
+        for (Long id : mById.keySet()) ids[i++] = id;
+        return ids;
+    }
+
+    /**
+     * Return the number of stored messages.
+     */
+    public synchronized int size() {
+        return mById.size();
+    }
+
+    /**
+     * Read the data of a stored message.
+     * @return  null if the message was removed or expired meanwhile
+     */
+    public synchronized byte[] read(StoredMessage message) {
+        if (mById.get(message.id) != message) return null;
+        MappedByteBuffer buffer = message.mSegment.buffer;
+        int destLength = buffer.getShort(message.mOffset + 21) & 0xffff;
+        int start = message.mOffset + RECORD_HEADER + destLength;
+        byte[] data = new byte[message.mLength - RECORD_HEADER - destLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Remove a message, e.g. after it was forwarded.
+     */
+    public synchronized void remove(StoredMessage message) {
+        if (mById.get(message.id) != message) return;
+        mById.remove(message.id);
+        if (message.mExpiry != null) message.mExpiry.cancel();
+        List<StoredMessage> list = mByDestination.get(message.destination);
+        list.remove(message);
+        if (list.isEmpty()) mByDestination.remove(message.destination);
+
+        Segment segment = message.mSegment;
+        segment.buffer.put(message.mOffset, STATUS_DELETED);
+        if (--segment.live == 0 && segment != mActive) {
+            mSegments.remove(segment);
+            deleteSegment(segment);
+        }
+    }
+
+    /**
+     * Flush and unmap the log.
+     */
+    public synchronized void close() {
+        for (StoredMessage message : mById.values()) {
+            if (message.mExpiry != null) message.mExpiry.cancel();
+        }
+        mTimers = null;
+        Iterator<Segment> it = mSegments.iterator();
+        while (it.hasNext()) {
+            it.next().close();
+        }
+        mSegments.clear();
+        mActive = null;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segment.close();
+        if (!segment.file.delete()) Log.w(TAG, "could not delete " + segment.file);
+    }
+
+    private static String utf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Devices recently seen in radio range, keyed by MAC address with an index
+ * by device name. Entries are added one at a time as inquiry results or
+ * connections come in and each expires on its own after the TTL, so a
+ * destination seen a moment ago can be connected without a new inquiry.
+ */
+public class NeighborTable {
+    // Value of rssi when the signal strength is not known
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    /**
+     * One device in range.
+     */
+    public static class Neighbor {
+        public final String address;
+        public String name;
+        // Signal strength in dBm of the last inquiry result, or RSSI_UNKNOWN
+        public int rssi = RSSI_UNKNOWN;
+        // SystemClock.elapsedRealtime() of the last inquiry result or connection
+        public long lastSeen;
+
+        Neighbor(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + address + ")" + (rssi == RSSI_UNKNOWN ? "" : " " + rssi + "dBm");
+        }
+    }
+
+    private final HashMap<String, Neighbor> mByAddress = new HashMap<String, Neighbor>();
+    private final HashMap<String, Neighbor> mByName = new HashMap<String, Neighbor>();
+    private long mTtl;
+
+    /**
+     * @param ttl  How long after it was last seen a neighbor is trusted, in milliseconds
+     */
+    public NeighborTable(long ttl) {
+        mTtl = ttl;
+    }
+
+    public synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    public synchronized long getTtl() {
+        return mTtl;
+    }
+
+    /**
+     * Record that a device is in range.
+     * @param name  The device name, or null if not known
+     * @param rssi  Signal strength in dBm, or RSSI_UNKNOWN
+     * @return  The updated entry
+     */
+    public synchronized Neighbor seen(String address, String name, int rssi, long now) {
+        Neighbor neighbor = mByAddress.get(address);
+        if (neighbor == null) {
+            neighbor = new Neighbor(address);
+            mByAddress.put(address, neighbor);
+        }
+        if (name != null && !name.equals(neighbor.name)) {
+            if (neighbor.name != null && mByName.get(neighbor.name) == neighbor) {
+                mByName.remove(neighbor.name);
+            }
+            neighbor.name = name;
+        }
+        if (neighbor.name != null) mByName.put(neighbor.name, neighbor);
+        if (rssi != RSSI_UNKNOWN) neighbor.rssi = rssi;
+        neighbor.lastSeen = now;
+        return neighbor;
+    }
+
+    /**
+     * Return the neighbor with the given address if it was seen within the TTL.
+     */
+    public synchronized Neighbor get(String address, long now) {
+        return fresh(mByAddress.get(address), now);
+    }
+
+    /**
+     * Return the neighbor with the given name if it was seen within the TTL.
+     */
+    public synchronized Neighbor findByName(String name, long now) {
+        return fresh(mByName.get(name), now);
+    }
+
+    private Neighbor fresh(Neighbor neighbor, long now) {
+        return neighbor != null && now - neighbor.lastSeen < mTtl ? neighbor : null;
+    }
+
+    /**
+     * Return all neighbors seen within the TTL.
+     */
+    public synchronized List<Neighbor> getNeighbors(long now) {
+        ArrayList<Neighbor> result = new ArrayList<Neighbor>(mByAddress.size());
+        for (Neighbor neighbor : mByAddress.values()) {
+            if (now - neighbor.lastSeen < mTtl) result.add(neighbor);
+        }
+        return result;
+    }
+
+    /**
+     * Forget a neighbor, e.g. after a connect to it failed.
+     */
+    public synchronized void remove(String address) {
+        Neighbor neighbor = mByAddress.remove(address);
+        if (neighbor != null && neighbor.name != null && mByName.get(neighbor.name) == neighbor) {
+            mByName.remove(neighbor.name);
+        }
+    }
+
+    /**
+     * Drop entries older than the TTL.
+     */
+    public synchronized void purge(long now) {
+        Iterator<Neighbor> it = mByAddress.values().iterator();
+        while (it.hasNext()) {
+            Neighbor neighbor = it.next();
+            if (now - neighbor.lastSeen < mTtl) continue;
+            it.remove();
+            if (neighbor.name != null && mByName.get(neighbor.name) == neighbor) {
+                mByName.remove(neighbor.name);
+            }
+        }
+    }
+}
@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Proactive (OLSR style) routing. Neighbors exchange HELLO packets over
+ * their links every HELLO_INTERVAL, listing the neighbors they hear. That
+ * tells each node which of its links work both ways and who its two-hop
+ * neighbors are. From those it picks its multipoint relays (MPRs), a small
+ * set of neighbors that together reach every two-hop neighbor. Nodes picked
+ * as MPR flood topology control (TC) packets listing their neighbors, and
+ * only MPRs pass a TC on, so a flood costs far fewer transmissions than
+ * with every node repeating it.
+ * <p>
+ * Every node keeps the shortest paths over the known topology, by the sum
+ * of the {@link LinkQuality} link metrics, so the first message to a node
+ * goes out at once instead of waiting for a route discovery. The price is
+ * the steady HELLO and TC traffic, which also keeps the links open. Like
+ * {@link AodvRouter} it does no I/O itself.
+ */
+public class OlsrRouter implements MeshRouter {
+    // Debugging
+    private static final String TAG = "OlsrRouter";
+    private static final boolean D = true;
+
+    // How often HELLOs are sent; well below the link keep-alive timeout,
+    // so links to neighbors stay open
+    public static final long HELLO_INTERVAL = 10 * 1000;
+    // How long a neighbor is believed after its last HELLO
+    public static final long NEIGHBOR_HOLD_TIME = 3 * HELLO_INTERVAL;
+    // How often a node picked as MPR floods its neighbor list
+    public static final long TC_INTERVAL = 2 * HELLO_INTERVAL;
+    // How long a TC is believed
+    public static final long TOPOLOGY_HOLD_TIME = 3 * TC_INTERVAL;
+    // How long a message waits for a route to show up before it is given up
+    public static final long ROUTE_WAIT_TIME = NEIGHBOR_HOLD_TIME;
+    // Messages buffered per destination while waiting for a route
+    private static final int MAX_BUFFERED = 32;
+
+    // Status of a neighbor in a HELLO: its HELLOs arrive, it also hears
+    // ours, or it was picked as MPR as well
+    private static final int LINK_HEARD = 0;
+    private static final int LINK_SYMMETRIC = 1;
+    private static final int LINK_MPR = 2;
+
+    // One node listed in a HELLO or a TC
+    private static class Advert {
+        final String name;
+        final int status;
+        final int metric;
+
+        Advert(String name, int status, int metric) {
+            this.name = name;
+            this.status = status;
+            this.metric = metric;
+        }
+    }
+
+    // A neighbor, by link address
+    private static class Neighbor {
+        final String address;
+        String name;
+        // Times until which the neighbor is kept, its HELLOs are believed,
+        // the link works both ways, and the neighbor uses this node as MPR
+        long expiresAt;
+        long heardUntil;
+        long symmetricUntil;
+        long selectorUntil;
+        // The neighbor's symmetric neighbors, from its last HELLO
+        List<Advert> neighbors = new ArrayList<Advert>();
+
+        Neighbor(String address) {
+            this.address = address;
+        }
+
+        boolean isSymmetric(long now) {
+            return now < symmetricUntil;
+        }
+    }
+
+    // The last TC of a node
+    private static class Topology {
+        int id;
+        boolean forwarded;
+        long expiresAt;
+        List<Advert> neighbors;
+    }
+
+    private final String mLocalName;
+    private final Callbacks mCallbacks;
+    private final LinkQuality mLinkQuality;
+
+    // Last message number and TC number used
+    private int mMessageId;
+    private int mTcId;
+    private long mNextHello;
+    private long mNextTc;
+
+    private final HashMap<String, Neighbor> mNeighbors = new HashMap<String, Neighbor>();
+    private final HashMap<String, Topology> mTopology = new HashMap<String, Topology>();
+    // Link addresses of the neighbors picked as MPR
+    private HashSet<String> mMprs = new HashSet<String>();
+    // Shortest paths, by destination name; rebuilt whenever the topology changes
+    private HashMap<String, RouteEntry> mRoutes = new HashMap<String, RouteEntry>();
+    private final HashMap<String, List<MeshPacket>> mBuffered = new HashMap<String, List<MeshPacket>>();
+    // When messages for a destination are given up if no route shows up
+    private final HashMap<String, Long> mWaitUntil = new HashMap<String, Long>();
+
+    /**
+     * @param localName  Name of this node, as other nodes address it
+     * @param callbacks  Receives outgoing packets and routing results
+     * @param linkQuality  Link estimates to weigh routes by, or null to
+     *                     count hops only
+     */
+    public OlsrRouter(String localName, Callbacks callbacks, LinkQuality linkQuality) {
+        mLocalName = localName;
+        mCallbacks = callbacks;
+        mLinkQuality = linkQuality;
+        // TCs and messages from before a restart must not shadow new ones
+        mTcId = (int) (System.currentTimeMillis() / 1000);
+        mMessageId = mTcId;
+    }
+
+    public String getLocalName() {
+        return mLocalName;
+    }
+
+    /**
+     * Return a route to the destination, or null if it is not in the known topology.
+     */
+    public RouteEntry findRoute(String destination, long now) {
+        return mRoutes.get(destination);
+    }
+
+    /**
+     * Start exchanging HELLOs with a neighbor found by inquiry. The first
+     * HELLO opens a link to it, later ones keep the link open.
+     */
+    public void neighborSeen(String name, String address, long now) {
+        if (name == null || name.equals(mLocalName)) return;
+        Neighbor neighbor = mNeighbors.get(address);
+        if (neighbor == null) {
+            neighbor = new Neighbor(address);
+            neighbor.name = name;
+            neighbor.expiresAt = now + NEIGHBOR_HOLD_TIME;
+            mNeighbors.put(address, neighbor);
+            mCallbacks.sendPacket(address, buildHello(now));
+            return;
+        }
+        neighbor.name = name;
+        neighbor.expiresAt = Math.max(neighbor.expiresAt, now + NEIGHBOR_HOLD_TIME);
+    }
+
+    public void linkUp(String name, String address, long now) {
+        neighborSeen(name, address, now);
+    }
+
+    /**
+     * The neighbor is dropped; it comes back with its next HELLO.
+     */
+    public void linkDown(String address, long now) {
+        linkBroken(address, now);
+    }
+
+    public void linkBroken(String address, long now) {
+        if (mNeighbors.remove(address) != null) update(now);
+    }
+
+    public boolean sendData(String destination, byte[] payload, long now) {
+        MeshPacket packet = new MeshPacket(MeshPacket.TYPE_DATA, mLocalName, destination);
+        packet.id = ++mMessageId;
+        packet.payload = payload;
+
+        RouteEntry route = mRoutes.get(destination);
+        if (route != null) {
+            mCallbacks.sendPacket(route.nextHop, packet);
+            return true;
+        }
+
+        List<MeshPacket> buffered = mBuffered.get(destination);
+        if (buffered == null) {
+            buffered = new ArrayList<MeshPacket>();
+            mBuffered.put(destination, buffered);
+        }
+        if (buffered.size() >= MAX_BUFFERED) buffered.remove(0);
+        buffered.add(packet);
+        if (!mWaitUntil.containsKey(destination)) mWaitUntil.put(destination, now + ROUTE_WAIT_TIME);
+        return false;
+    }
+
+    public boolean resend(MeshPacket packet, long now) {
+        RouteEntry route = mRoutes.get(packet.destination);
+        if (route == null) return false;
+        mCallbacks.sendPacket(route.nextHop, packet);
+        return true;
+    }
+
+    public List<String> getPendingDestinations() {
+        return new ArrayList<String>(mBuffered.keySet());
+    }
+
+    /**
+     * Send buffered messages if the destination is in the topology now;
+     * otherwise they wait up to ROUTE_WAIT_TIME for it to show up.
+     */
+    public void requestRoute(String destination, long now) {
+        RouteEntry route = mRoutes.get(destination);
+        if (route != null) {
+            flushBuffered(destination, route);
+        } else if (!mWaitUntil.containsKey(destination)) {
+            mWaitUntil.put(destination, now + ROUTE_WAIT_TIME);
+        }
+    }
+
+    public void handlePacket(MeshPacket packet, String fromAddress, String fromName, long now) {
+        if (D) Log.d(TAG, "received " + packet + " from " + fromName);
+        // Our own packet came back around a loop
+        if (packet.originator.equals(mLocalName)) return;
+
+        switch (packet.type) {
+        case MeshPacket.TYPE_DATA:
+            neighborSeen(fromName, fromAddress, now);
+            handleData(packet, fromAddress);
+            break;
+        case MeshPacket.TYPE_HELLO:
+            handleHello(packet, fromAddress, now);
+            break;
+        case MeshPacket.TYPE_TC:
+            handleTc(packet, fromAddress, now);
+            break;
+        default:
+            // Route discovery packets of on-demand nodes are not understood here
+            break;
+        }
+    }
+
+    private void handleData(MeshPacket packet, String fromAddress) {
+        if (packet.destination.equals(mLocalName)) {
+            mCallbacks.deliverPacket(packet);
+            return;
+        }
+        RouteEntry route = mRoutes.get(packet.destination);
+        if (route == null || packet.ttl <= 1) {
+            if (D) Log.d(TAG, "no route to forward " + packet);
+            ArrayList<MeshPacket> undelivered = new ArrayList<MeshPacket>();
+            undelivered.add(forwardCopy(packet));
+            mCallbacks.routeFailed(packet.destination, undelivered);
+            return;
+        }
+        mCallbacks.sendPacket(route.nextHop, forwardCopy(packet));
+    }
+
+    private void handleHello(MeshPacket hello, String fromAddress, long now) {
+        List<Advert> adverts = decodeAdverts(hello.payload);
+        if (adverts == null) return;
+
+        Neighbor neighbor = mNeighbors.get(fromAddress);
+        if (neighbor == null) {
+            neighbor = new Neighbor(fromAddress);
+            mNeighbors.put(fromAddress, neighbor);
+        }
+        boolean wasHeard = now < neighbor.heardUntil;
+        boolean wasSymmetric = neighbor.isSymmetric(now);
+        neighbor.name = hello.originator;
+        neighbor.heardUntil = now + NEIGHBOR_HOLD_TIME;
+        neighbor.expiresAt = Math.max(neighbor.expiresAt, neighbor.heardUntil);
+
+        // The link works both ways if the neighbor lists this node at all
+        int status = -1;
+        ArrayList<Advert> twoHop = new ArrayList<Advert>();
+        for (Advert advert : adverts) {
+            if (advert.name.equals(mLocalName)) status = advert.status;
+            else if (advert.status != LINK_HEARD) twoHop.add(advert);
+        }
+        neighbor.symmetricUntil = status >= 0 ? neighbor.heardUntil : 0;
+        neighbor.selectorUntil = status == LINK_MPR ? neighbor.heardUntil : 0;
+        neighbor.neighbors = twoHop;
+
+        // Answer a new neighbor right away rather than after HELLO_INTERVAL,
+        // the handshake then takes three HELLOs
+        if (!wasHeard || wasSymmetric != neighbor.isSymmetric(now)) {
+            mCallbacks.sendPacket(fromAddress, buildHello(now));
+        }
+        update(now);
+    }
+
+    private void handleTc(MeshPacket tc, String fromAddress, long now) {
+        Neighbor from = mNeighbors.get(fromAddress);
+        if (from == null || !from.isSymmetric(now)) return;
+
+        Topology topology = mTopology.get(tc.originator);
+        if (topology != null && now < topology.expiresAt && !MeshPacket.isNewer(tc.id, topology.id)) {
+            // A copy that came another way only matters if it still needs forwarding
+            if (tc.id != topology.id || topology.forwarded) return;
+        } else {
+            List<Advert> adverts = decodeAdverts(tc.payload);
+            if (adverts == null) return;
+            topology = new Topology();
+            topology.id = tc.id;
+            topology.neighbors = adverts;
+            topology.expiresAt = now + TOPOLOGY_HOLD_TIME;
+            mTopology.put(tc.originator, topology);
+            update(now);
+        }
+
+        // Only the sender's MPRs pass the TC on
+        if (now < from.selectorUntil && tc.ttl > 1) {
+            topology.forwarded = true;
+            MeshPacket copy = forwardCopy(tc);
+            for (Neighbor neighbor : mNeighbors.values()) {
+                if (neighbor.isSymmetric(now) && !neighbor.address.equals(fromAddress)) {
+                    mCallbacks.sendPacket(neighbor.address, copy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Advance timers: send HELLOs and TCs, expire neighbors and topology,
+     * and give up on messages that found no route.
+     */
+    public void tick(long now) {
+        boolean changed = false;
+        Iterator<Neighbor> neighbors = mNeighbors.values().iterator();
+        while (neighbors.hasNext()) {
+            if (now >= neighbors.next().expiresAt) {
+                neighbors.remove();
+                changed = true;
+            }
+        }
+        Iterator<Topology> topologies = mTopology.values().iterator();
+        while (topologies.hasNext()) {
+            if (now >= topologies.next().expiresAt) {
+                topologies.remove();
+                changed = true;
+            }
+        }
+
+        if (now >= mNextHello) {
+            mNextHello = now + HELLO_INTERVAL;
+            MeshPacket hello = buildHello(now);
+            for (Neighbor neighbor : mNeighbors.values()) {
+                mCallbacks.sendPacket(neighbor.address, hello);
+            }
+            // Links may have stopped being symmetric since the last HELLO
+            changed = true;
+        }
+        if (now >= mNextTc) {
+            mNextTc = now + TC_INTERVAL;
+            sendTc(now);
+        }
+        if (changed) update(now);
+
+        Iterator<Map.Entry<String, Long>> waiting = mWaitUntil.entrySet().iterator();
+        ArrayList<String> failed = new ArrayList<String>();
+        while (waiting.hasNext()) {
+            Map.Entry<String, Long> entry = waiting.next();
+            if (now < entry.getValue()) continue;
+            waiting.remove();
+            failed.add(entry.getKey());
+        }
+        for (String destination : failed) {
+            List<MeshPacket> undelivered = mBuffered.remove(destination);
+            if (undelivered == null) undelivered = new ArrayList<MeshPacket>();
+            mCallbacks.routeFailed(destination, undelivered);
+        }
+    }
+
+    private MeshPacket buildHello(long now) {
+        ArrayList<Advert> adverts = new ArrayList<Advert>();
+        for (Neighbor neighbor : mNeighbors.values()) {
+            if (now >= neighbor.heardUntil) continue;
+            int status = mMprs.contains(neighbor.address) ? LINK_MPR
+                    : neighbor.isSymmetric(now) ? LINK_SYMMETRIC : LINK_HEARD;
+            adverts.add(new Advert(neighbor.name, status, linkMetric(neighbor.address)));
+        }
+        MeshPacket hello = new MeshPacket(MeshPacket.TYPE_HELLO, mLocalName, "");
+        hello.ttl = 1;
+        hello.payload = encodeAdverts(adverts);
+        return hello;
+    }
+
+    /**
+     * Flood the symmetric neighbors, if some neighbor picked this node as MPR.
+     */
+    private void sendTc(long now) {
+        ArrayList<Advert> adverts = new ArrayList<Advert>();
+        boolean selected = false;
+        for (Neighbor neighbor : mNeighbors.values()) {
+            if (now < neighbor.selectorUntil) selected = true;
+            if (neighbor.isSymmetric(now)) {
+                adverts.add(new Advert(neighbor.name, LINK_SYMMETRIC, linkMetric(neighbor.address)));
+            }
+        }
+        if (!selected) return;
+
+        MeshPacket tc = new MeshPacket(MeshPacket.TYPE_TC, mLocalName, "");
+        tc.id = ++mTcId;
+        tc.payload = encodeAdverts(adverts);
+        if (D) Log.d(TAG, "TC " + tc.id + " with " + adverts.size() + " neighbor(s)");
+        for (Neighbor neighbor : mNeighbors.values()) {
+            if (neighbor.isSymmetric(now)) mCallbacks.sendPacket(neighbor.address, tc);
+        }
+    }
+
+    /**
+     * Pick the MPRs and recompute the routes after the neighbors or the
+     * topology changed, then send messages whose destination is reachable now.
+     */
+    private void update(long now) {
+        selectMprs(now);
+        computeRoutes(now);
+        for (String destination : getPendingDestinations()) {
+            RouteEntry route = mRoutes.get(destination);
+            if (route != null) flushBuffered(destination, route);
+        }
+    }
+
+    /**
+     * Pick neighbors covering every two-hop neighbor, with the RFC 3626
+     * heuristic: first those that are the only way to some two-hop
+     * neighbor, then the ones covering most of the rest.
+     */
+    private void selectMprs(long now) {
+        HashSet<String> oneHop = new HashSet<String>();
+        ArrayList<Neighbor> symmetric = new ArrayList<Neighbor>();
+        for (Neighbor neighbor : mNeighbors.values()) {
+            if (!neighbor.isSymmetric(now)) continue;
+            oneHop.add(neighbor.name);
+            symmetric.add(neighbor);
+        }
+        HashMap<String, List<Neighbor>> twoHop = new HashMap<String, List<Neighbor>>();
+        for (Neighbor neighbor : symmetric) {
+            for (Advert advert : neighbor.neighbors) {
+                if (advert.name.equals(mLocalName) || oneHop.contains(advert.name)) continue;
+                List<Neighbor> via = twoHop.get(advert.name);
+                if (via == null) {
+                    via = new ArrayList<Neighbor>();
+                    twoHop.put(advert.name, via);
+                }
+                via.add(neighbor);
+            }
+        }
+
+        HashSet<String> mprs = new HashSet<String>();
+        HashSet<String> uncovered = new HashSet<String>(twoHop.keySet());
+        for (List<Neighbor> via : twoHop.values()) {
+            if (via.size() == 1) select(via.get(0), mprs, uncovered);
+        }
+        while (!uncovered.isEmpty()) {
+            Neighbor best = null;
+            int bestCount = 0;
+            for (Neighbor neighbor : symmetric) {
+                int count = 0;
+                for (Advert advert : neighbor.neighbors) {
+                    if (uncovered.contains(advert.name)) count++;
+                }
+                if (count > bestCount || (count == bestCount && best != null
+                        && linkMetric(neighbor.address) < linkMetric(best.address))) {
+                    best = neighbor;
+                    bestCount = count;
+                }
+            }
+            if (best == null) break;
+            select(best, mprs, uncovered);
+        }
+
+        if (!mprs.equals(mMprs)) {
+            if (D) Log.d(TAG, "MPRs " + mprs);
+            mMprs = mprs;
+        }
+    }
+
+    private static void select(Neighbor neighbor, HashSet<String> mprs, HashSet<String> uncovered) {
+        mprs.add(neighbor.address);
+        for (Advert advert : neighbor.neighbors) uncovered.remove(advert.name);
+    }
+
+    /**
+     * Dijkstra over the symmetric links, the neighbors' HELLOs and the TCs.
+     */
+    private void computeRoutes(long now) {
+        // Links between other nodes, by the node advertising them; a
+        // neighbor's own HELLO is newer than its TC
+        HashMap<String, List<Advert>> links = new HashMap<String, List<Advert>>();
+        for (Map.Entry<String, Topology> entry : mTopology.entrySet()) {
+            links.put(entry.getKey(), entry.getValue().neighbors);
+        }
+        HashMap<String, RouteEntry> tentative = new HashMap<String, RouteEntry>();
+        for (Neighbor neighbor : mNeighbors.values()) {
+            if (!neighbor.isSymmetric(now)) continue;
+            links.put(neighbor.name, neighbor.neighbors);
+            RouteEntry route = newRoute(neighbor.name, neighbor.address, 1, linkMetric(neighbor.address));
+            RouteEntry other = tentative.get(neighbor.name);
+            if (other == null || route.metric < other.metric) tentative.put(neighbor.name, route);
+        }
+
+        HashMap<String, RouteEntry> routes = new HashMap<String, RouteEntry>();
+        while (!tentative.isEmpty()) {
+            RouteEntry nearest = null;
+            for (RouteEntry route : tentative.values()) {
+                if (nearest == null || route.metric < nearest.metric
+                        || (route.metric == nearest.metric && route.hopCount < nearest.hopCount)) {
+                    nearest = route;
+                }
+            }
+            tentative.remove(nearest.destination);
+            routes.put(nearest.destination, nearest);
+
+            List<Advert> adverts = links.get(nearest.destination);
+            if (adverts == null) continue;
+            for (Advert advert : adverts) {
+                if (advert.name.equals(mLocalName) || routes.containsKey(advert.name)) continue;
+                int metric = nearest.metric + advert.metric;
+                RouteEntry other = tentative.get(advert.name);
+                if (other == null || metric < other.metric) {
+                    tentative.put(advert.name,
+                            newRoute(advert.name, nearest.nextHop, nearest.hopCount + 1, metric));
+                }
+            }
+        }
+        mRoutes = routes;
+    }
+
+    private static RouteEntry newRoute(String destination, String nextHop, int hopCount, int metric) {
+        RouteEntry route = new RouteEntry(destination);
+        route.nextHop = nextHop;
+        route.hopCount = hopCount;
+        route.metric = metric;
+        // Valid until the next computation replaces it
+        route.valid = true;
+        route.expiresAt = Long.MAX_VALUE;
+        return route;
+    }
+
+    private void flushBuffered(String destination, RouteEntry route) {
+        mWaitUntil.remove(destination);
+        List<MeshPacket> buffered = mBuffered.remove(destination);
+        if (buffered != null) {
+            for (MeshPacket packet : buffered) {
+                mCallbacks.sendPacket(route.nextHop, packet);
+            }
+        }
+        mCallbacks.routeFound(destination, route);
+    }
+
+    private int linkMetric(String address) {
+        return mLinkQuality == null ? LinkQuality.METRIC_SCALE : mLinkQuality.getMetric(address);
+    }
+
+    private static byte[] encodeAdverts(List<Advert> adverts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * adverts.size() + 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(adverts.size());
+            for (Advert advert : adverts) {
+                out.writeUTF(advert.name);
+                out.writeByte(advert.status);
+                out.writeShort(Math.min(advert.metric, 0xffff));
+            }
+        } catch (IOException e) {
+            // Cannot happen when writing to a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return  The list, or null if the payload is not a valid one
+     */
+    private static List<Advert> decodeAdverts(byte[] payload) {
+        if (payload == null) return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            int count = in.readUnsignedShort();
+            ArrayList<Advert> adverts = new ArrayList<Advert>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int status = in.readUnsignedByte();
+                adverts.add(new Advert(name, status, in.readUnsignedShort()));
+            }
+            return adverts;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static MeshPacket forwardCopy(MeshPacket packet) {
+        MeshPacket copy = new MeshPacket(packet);
+        copy.hopCount++;
+        copy.ttl--;
+        return copy;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outgoing packets waiting for a link, one queue per next hop address.
+ * Destinations take turns: flush() writes one packet per connected
+ * destination per round, and nextToConnect() rotates through the
+ * destinations that still need a connection, so one busy peer cannot
+ * starve the others. A single connect drains everything queued for its
+ * destination.
+ */
+public class OutboundScheduler {
+    // What enqueue() does when a destination queue is full
+    public static final int OVERFLOW_DROP_OLDEST = 0;  // make room by dropping its oldest packet
+    public static final int OVERFLOW_REJECT = 1;       // refuse the new packet
+
+    /**
+     * The links packets are written to.
+     */
+    public interface Transmitter {
+        boolean isConnected(String address);
+        /** Write a packet; return false if the link is gone or busy and the packet must wait. */
+        boolean write(String address, byte[] data);
+    }
+
+    // Queues in round-robin order; a destination moves to the back after its turn
+    private final LinkedHashMap<String, LinkedList<byte[]>> mQueues =
+            new LinkedHashMap<String, LinkedList<byte[]>>();
+    private final int mDestinationCapacity;
+    private final int mTotalCapacity;
+    private final int mOverflowPolicy;
+    private int mSize;
+    private int mDropped;
+
+    /**
+     * @param destinationCapacity  Most packets queued for one destination
+     * @param totalCapacity  Most packets queued overall; beyond it enqueue() always rejects
+     * @param overflowPolicy  OVERFLOW_DROP_OLDEST or OVERFLOW_REJECT
+     */
+    public OutboundScheduler(int destinationCapacity, int totalCapacity, int overflowPolicy) {
+        mDestinationCapacity = destinationCapacity;
+        mTotalCapacity = totalCapacity;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queue a packet for a next hop.
+     * @return  false if the packet was refused because the queues are full
+     */
+    public synchronized boolean enqueue(String address, byte[] data) {
+        LinkedList<byte[]> queue = mQueues.get(address);
+        if (queue != null && queue.size() >= mDestinationCapacity) {
+            if (mOverflowPolicy == OVERFLOW_REJECT) {
+                mDropped++;
+                return false;
+            }
+            queue.removeFirst();
+            mSize--;
+            mDropped++;
+        }
+        if (mSize >= mTotalCapacity) {
+            mDropped++;
+            return false;
+        }
+        if (queue == null) {
+            queue = new LinkedList<byte[]>();
+            mQueues.put(address, queue);
+        }
+        queue.add(data);
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Return true if the total capacity is used up; callers should hold
+     * new messages back until packets drain.
+     */
+    public synchronized boolean isFull() {
+        return mSize >= mTotalCapacity;
+    }
+
+    /**
+     * Return the number of packets queued for all destinations.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the number of packets queued for one destination.
+     */
+    public synchronized int size(String address) {
+        LinkedList<byte[]> queue = mQueues.get(address);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Return the number of packets dropped or refused so far.
+     */
+    public synchronized int getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Write every packet whose destination has an open link, taking one
+     * packet from each such destination in turn.
+     * @return  The number of packets written
+     */
+    public synchronized int flush(Transmitter transmitter) {
+        ArrayList<String> ready = new ArrayList<String>();
+        for (String address : mQueues.keySet()) {
+            if (transmitter.isConnected(address)) ready.add(address);
+        }
+
+        int written = 0;
+        while (!ready.isEmpty()) {
+            Iterator<String> it = ready.iterator();
+            while (it.hasNext()) {
+                String address = it.next();
+                LinkedList<byte[]> queue = mQueues.get(address);
+                if (!transmitter.write(address, queue.getFirst())) {
+                    // Link went away or is busy, the rest waits for a later flush
+                    it.remove();
+                    continue;
+                }
+                queue.removeFirst();
+                mSize--;
+                written++;
+                if (queue.isEmpty()) {
+                    mQueues.remove(address);
+                    it.remove();
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Pick the destination to connect to next: the first one in turn that
+     * has packets and no open link. It then moves to the back of the line.
+     * @return  The address, or null if nothing needs a connection
+     */
+    public synchronized String nextToConnect(Transmitter transmitter) {
+        for (Map.Entry<String, LinkedList<byte[]>> entry : mQueues.entrySet()) {
+            String address = entry.getKey();
+            if (transmitter.isConnected(address)) continue;
+            LinkedList<byte[]> queue = entry.getValue();
+            mQueues.remove(address);
+            mQueues.put(address, queue);
+            return address;
+        }
+        return null;
+    }
+
+    /**
+     * Drop everything queued for a destination, e.g. when it cannot be reached.
+     * @return  The dropped packets
+     */
+    public synchronized List<byte[]> remove(String address) {
+        LinkedList<byte[]> queue = mQueues.remove(address);
+        if (queue == null) return new ArrayList<byte[]>();
+        mSize -= queue.size();
+        return queue;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process LinkTransport. Every transport instance registers a node name
+ * in a JVM wide table and links between them are a pair of bounded byte
+ * pipes, so several simulated nodes can talk to each other without any
+ * sockets or radios. Used to measure BluetoothChatService off-device.
+ */
+public class PipeLinkTransport implements LinkTransport {
+    // Default capacity of each pipe direction, roughly an RFCOMM socket buffer
+    public static final int DEFAULT_PIPE_SIZE = 16 * 1024;
+
+    // Listening servers of all transports in this process, keyed by node name
+    private static final HashMap<String, PipeServer> sServers = new HashMap<String, PipeServer>();
+
+    private final String mName;
+    private final int mPipeSize;
+
+    /**
+     * @param name  The node name other PipeLinkTransports use as address
+     */
+    public PipeLinkTransport(String name) {
+        this(name, DEFAULT_PIPE_SIZE);
+    }
+
+    /**
+     * @param name  The node name other PipeLinkTransports use as address
+     * @param pipeSize  Capacity in bytes of each pipe direction
+     */
+    public PipeLinkTransport(String name, int pipeSize) {
+        mName = name;
+        mPipeSize = pipeSize;
+    }
+
+    public LinkServer listen() throws IOException {
+        PipeServer server = new PipeServer(mName);
+        synchronized (sServers) {
+            if (sServers.containsKey(mName)) {
+                throw new IOException("already listening: " + mName);
+            }
+            sServers.put(mName, server);
+        }
+        return server;
+    }
+
+    public Link createLink(String address) {
+        return new ClientLink(address);
+    }
+
+    private static class PipeServer implements LinkServer {
+        private final String mmName;
+        private final BlockingQueue<PipeLink> mmPending = new LinkedBlockingQueue<PipeLink>();
+        private volatile boolean mmClosed;
+
+        PipeServer(String name) {
+            mmName = name;
+        }
+
+        public Link accept() throws IOException {
+            PipeLink link;
+            try {
+                link = mmPending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("accept() interrupted");
+            }
+            if (mmClosed) throw new IOException("server closed");
+            return link;
+        }
+
+        void offer(PipeLink link) throws IOException {
+            if (mmClosed) throw new IOException("connection refused: " + mmName);
+            mmPending.add(link);
+        }
+
+        public void close() {
+            synchronized (sServers) {
+                if (sServers.get(mmName) == this) sServers.remove(mmName);
+            }
+            mmClosed = true;
+            // Wake up a thread blocked in accept()
+            mmPending.add(new PipeLink(null, null, null));
+        }
+    }
+
+    /**
+     * One end of a connected pair of pipes.
+     */
+    private static class PipeLink implements Link {
+        private final String mmRemote;
+        private final BytePipe mmIn;
+        private final BytePipe mmOut;
+
+        PipeLink(String remote, BytePipe in, BytePipe out) {
+            mmRemote = remote;
+            mmIn = in;
+            mmOut = out;
+        }
+
+        public void connect() {
+        }
+
+        public InputStream getInputStream() {
+            return mmIn.mInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return mmOut.mOutput;
+        }
+
+        public String getRemoteAddress() {
+            return mmRemote;
+        }
+
+        public String getRemoteName() {
+            return mmRemote;
+        }
+
+        public void close() {
+            mmIn.close();
+            mmOut.close();
+        }
+    }
+
+    /**
+     * The outgoing end. The pipes only exist once connect() succeeded.
+     */
+    private class ClientLink implements Link {
+        private final String mmAddress;
+        private volatile PipeLink mmLink;
+        private volatile boolean mmClosed;
+
+        ClientLink(String address) {
+            mmAddress = address;
+        }
+
+        public void connect() throws IOException {
+            PipeServer server;
+            synchronized (sServers) {
+                server = sServers.get(mmAddress);
+            }
+            if (server == null || mmClosed) throw new IOException("connection refused: " + mmAddress);
+
+            BytePipe up = new BytePipe(mPipeSize);
+            BytePipe down = new BytePipe(mPipeSize);
+            server.offer(new PipeLink(mName, up, down));
+            mmLink = new PipeLink(mmAddress, down, up);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return connectedLink().getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return connectedLink().getOutputStream();
+        }
+
+        private PipeLink connectedLink() throws IOException {
+            PipeLink link = mmLink;
+            if (link == null) throw new IOException("not connected");
+            return link;
+        }
+
+        public String getRemoteAddress() {
+            return mmAddress;
+        }
+
+        public String getRemoteName() {
+            return mmAddress;
+        }
+
+        public void close() {
+            mmClosed = true;
+            PipeLink link = mmLink;
+            if (link != null) link.close();
+        }
+    }
+
+    /**
+     * A bounded single-direction byte pipe. Unlike java.io.PipedInputStream
+     * it does not care which threads read and write it.
+     */
+    static class BytePipe {
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return BytePipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (BytePipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                BytePipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                BytePipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                BytePipe.this.close();
+            }
+        };
+
+        BytePipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (mCount == 0) {
+                if (mClosed) return -1;
+                waitInterruptibly();
+            }
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mCount == mBuffer.length && !mClosed) {
+                    waitInterruptibly();
+                }
+                if (mClosed) throw new IOException("pipe closed");
+                int tail = (mHead + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+                System.arraycopy(b, off, mBuffer, tail, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void waitInterruptibly() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+/**
+ * A receive buffer handed from a ConnectedTask to the UI thread. The
+ * consumer must call {@link #release()} once it is done with the bytes so
+ * the buffer can be reused for a later read.
+ */
+public class PooledBuffer {
+    public final byte[] data;
+    // Number of valid bytes in data
+    public int length;
+    // Frame type of the payload
+    public int type;
+    // The link the bytes came from
+    public String address;
+    public String name;
+
+    private final BufferPool mPool;
+
+    PooledBuffer(BufferPool pool, int size) {
+        mPool = pool;
+        data = new byte[size];
+    }
+
+    /**
+     * Return the buffer to its pool. The buffer must not be touched afterwards.
+     */
+    public void release() {
+        address = null;
+        name = null;
+        if (mPool != null) mPool.release(this);
+    }
+}
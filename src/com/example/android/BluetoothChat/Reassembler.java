@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * The receiving half of the fragment protocol of a link: puts the
+ * fragments written by a {@link SlidingWindow} back together and keeps
+ * track of the acks to send. Messages being reassembled together use at
+ * most maxBytes; a fragment of a new message that does not fit is dropped,
+ * and the sender sends it again once earlier messages completed.
+ * <p>
+ * Not thread safe; a link's reader task owns its reassembler.
+ */
+public class Reassembler {
+    // Debugging
+    private static final String TAG = "Reassembler";
+    private static final boolean D = true;
+
+    private final BufferPool mPool;
+    private final int mMaxMessage;
+    private final int mMaxBytes;
+    // Messages partly received, by message id
+    private final HashMap<Integer, Partial> mPartials = new HashMap<Integer, Partial>();
+    private int mBytes;
+    // Next fragment expected, and bit i set if fragment mCumulative + 1 + i arrived
+    private int mCumulative;
+    private int mSelective;
+    private boolean mAckDue;
+
+    private static class Partial {
+        final PooledBuffer buffer;
+        final int total;
+        int received;
+
+        Partial(PooledBuffer buffer, int total) {
+            this.buffer = buffer;
+            this.total = total;
+        }
+    }
+
+    /**
+     * @param pool  Where message buffers come from
+     * @param maxMessage  Largest message the peer may send
+     * @param maxBytes  Most bytes held in partly received messages
+     */
+    public Reassembler(BufferPool pool, int maxMessage, int maxBytes) {
+        mPool = pool;
+        mMaxMessage = maxMessage;
+        mMaxBytes = Math.max(maxBytes, maxMessage);
+    }
+
+    /**
+     * Take in one fragment, header included.
+     * @return  The complete message with its length and type set, once its
+     *          last fragment arrived, else null. The caller releases it.
+     * @throws IOException  if the fragment is malformed
+     */
+    public PooledBuffer onFragment(byte[] buffer, int offset, int length) throws IOException {
+        if (length < SlidingWindow.HEADER_SIZE) throw new IOException("short fragment");
+        int seq = Frame.readInt(buffer, offset);
+        int id = Frame.readInt(buffer, offset + 4);
+        int total = Frame.readInt(buffer, offset + 8);
+        int start = Frame.readInt(buffer, offset + 12);
+        int type = buffer[offset + 16] & 0xff;
+        int size = length - SlidingWindow.HEADER_SIZE;
+        if (total < 0 || total > mMaxMessage) throw new IOException("message too large: " + total);
+        if (start < 0 || start > total - size) throw new IOException("fragment outside its message");
+
+        int d = seq - mCumulative;
+        if (d > SlidingWindow.MAX_WINDOW) throw new IOException("fragment " + seq + " beyond the window");
+        if (d < 0 || d > 0 && (mSelective & 1 << (d - 1)) != 0) {
+            // A resend of something we have; the ack that got it was late
+            mAckDue = true;
+            return null;
+        }
+
+        Partial partial = mPartials.get(id);
+        if (partial == null) {
+            if (mBytes + total > mMaxBytes) {
+                if (D) Log.d(TAG, "no room for message " + id);
+                return null;
+            }
+            try {
+                partial = new Partial(mPool.acquire(total), total);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for a buffer");
+            }
+            partial.buffer.type = type;
+            mPartials.put(id, partial);
+            mBytes += total;
+        } else if (total != partial.total) {
+            // The bounds were checked against this fragment's own total
+            throw new IOException("fragment outside its message");
+        }
+        System.arraycopy(buffer, offset + SlidingWindow.HEADER_SIZE, partial.buffer.data, start, size);
+        partial.received += size;
+
+        if (d == 0) {
+            // Move past this fragment and any that arrived ahead of it
+            mCumulative++;
+            while ((mSelective & 1) != 0) {
+                mSelective >>>= 1;
+                mCumulative++;
+            }
+            mSelective >>>= 1;
+        } else {
+            mSelective |= 1 << (d - 1);
+        }
+        mAckDue = true;
+
+        if (partial.received < partial.total) return null;
+        mPartials.remove(id);
+        mBytes -= partial.total;
+        partial.buffer.length = partial.total;
+        return partial.buffer;
+    }
+
+    /**
+     * Return the ack to send for the fragments taken in since the last
+     * call, or null if there is nothing new to acknowledge.
+     */
+    public byte[] takeAck() {
+        if (!mAckDue) return null;
+        mAckDue = false;
+        byte[] ack = new byte[SlidingWindow.ACK_SIZE];
+        Frame.writeInt(ack, 0, mCumulative);
+        Frame.writeInt(ack, 4, mSelective);
+        return ack;
+    }
+
+    /**
+     * Give back the buffers of unfinished messages; call when the link closes.
+     */
+    public void release() {
+        for (Partial partial : mPartials.values()) partial.buffer.release();
+        mPartials.clear();
+        mBytes = 0;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * One entry of the {@link RoutingTable}: how to reach a destination node.
+ */
+public class RouteEntry {
+    public final String destination;
+    // Link address of the neighbor to hand packets for the destination to
+    public String nextHop;
+    public int hopCount;
+    // Sum of the link metrics along the route, see LinkQuality
+    public int metric;
+    // Latest known destination sequence number, or MeshPacket.SEQ_UNKNOWN
+    public int seq;
+    // SystemClock.elapsedRealtime() after which the route may not be used,
+    // and of the last time the route was installed or heard again
+    public long expiresAt;
+    public long updated;
+    // false once the route broke; the entry is kept to remember the sequence number
+    public boolean valid;
+    // Link addresses of the neighbors that send traffic along the route,
+    // told with a RERR when it breaks
+    public final Set<String> precursors = new HashSet<String>();
+
+    public RouteEntry(String destination) {
+        this.destination = destination;
+        seq = MeshPacket.SEQ_UNKNOWN;
+    }
+
+    /**
+     * Return true if the route can be used to send packets.
+     */
+    public boolean isFresh(long now) {
+        return valid && now < expiresAt;
+    }
+
+    @Override
+    public String toString() {
+        return destination + " via " + nextHop + " hops=" + hopCount + " metric=" + metric
+                + " seq=" + seq
+                + (valid ? "" : " (invalid)");
+    }
+}
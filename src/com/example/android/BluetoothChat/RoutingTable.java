@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Route cache keyed by destination node name. Entries follow the AODV
+ * freshness rules: a route is only replaced by one with a newer destination
+ * sequence number, or the same sequence number and a lower metric. The
+ * metric is the sum of the {@link LinkQuality} link metrics, so a longer
+ * path over good links wins over a short one over lossy links; hops only
+ * break ties.
+ */
+public class RoutingTable {
+    // How long an invalid entry is remembered for its sequence number
+    private static final long DELETE_PERIOD = 60 * 1000;
+
+    private final HashMap<String, RouteEntry> mRoutes = new HashMap<String, RouteEntry>();
+
+    /**
+     * Return the route to a destination if it is usable right now.
+     */
+    public synchronized RouteEntry lookup(String destination, long now) {
+        RouteEntry route = mRoutes.get(destination);
+        return route != null && route.isFresh(now) ? route : null;
+    }
+
+    /**
+     * Return the entry for a destination, valid or not.
+     */
+    public synchronized RouteEntry get(String destination) {
+        return mRoutes.get(destination);
+    }
+
+    /**
+     * Offer a route. It is installed if there is no usable route yet or if
+     * it is fresher than the current one; otherwise the table is unchanged.
+     * @param seq  The destination sequence number, or MeshPacket.SEQ_UNKNOWN
+     * @param metric  The route metric, see LinkQuality
+     * @param lifetime  How long the route stays usable, in milliseconds
+     * @return  true if the table changed
+     */
+    public synchronized boolean update(String destination, String nextHop, int hopCount,
+            int seq, int metric, long lifetime, long now) {
+        RouteEntry route = mRoutes.get(destination);
+        if (route == null) {
+            route = new RouteEntry(destination);
+            mRoutes.put(destination, route);
+        } else if (!route.isFresh(now)) {
+            // A broken route still remembers its sequence number: older
+            // information about the destination is not taken again
+            if (seq != MeshPacket.SEQ_UNKNOWN && route.seq != MeshPacket.SEQ_UNKNOWN
+                    && MeshPacket.isNewer(route.seq, seq)) {
+                return false;
+            }
+        } else if (!isBetter(route, hopCount, seq, metric)) {
+            // Same route heard again, just keep it alive with the latest metric
+            if (route.nextHop.equals(nextHop) && route.hopCount == hopCount) {
+                route.metric = metric;
+                route.expiresAt = Math.max(route.expiresAt, now + lifetime);
+                route.updated = now;
+            }
+            return false;
+        }
+
+        route.nextHop = nextHop;
+        route.hopCount = hopCount;
+        route.metric = metric;
+        if (seq != MeshPacket.SEQ_UNKNOWN) route.seq = seq;
+        route.expiresAt = now + lifetime;
+        route.updated = now;
+        route.valid = true;
+        return true;
+    }
+
+    private static boolean isBetter(RouteEntry route, int hopCount, int seq, int metric) {
+        if (seq != MeshPacket.SEQ_UNKNOWN && route.seq != MeshPacket.SEQ_UNKNOWN) {
+            if (MeshPacket.isNewer(seq, route.seq)) return true;
+            if (seq != route.seq) return false;
+        }
+        if (metric != route.metric) return metric < route.metric;
+        return hopCount < route.hopCount;
+    }
+
+    /**
+     * Extend the lifetime of an active route after it carried traffic.
+     */
+    public synchronized void refresh(String destination, long lifetime, long now) {
+        RouteEntry route = mRoutes.get(destination);
+        if (route != null && route.isFresh(now)) {
+            route.expiresAt = Math.max(route.expiresAt, now + lifetime);
+        }
+    }
+
+    /**
+     * Record a neighbor that sends traffic along the route to a destination.
+     */
+    public synchronized void addPrecursor(String destination, String address) {
+        RouteEntry route = mRoutes.get(destination);
+        if (route != null && !address.equals(route.nextHop)) route.precursors.add(address);
+    }
+
+    /**
+     * Return a snapshot of the precursors of the route to a destination.
+     */
+    public synchronized List<String> getPrecursors(String destination) {
+        RouteEntry route = mRoutes.get(destination);
+        return route == null ? new ArrayList<String>() : new ArrayList<String>(route.precursors);
+    }
+
+    /**
+     * Forget a neighbor as precursor of every route, after the link to it failed.
+     */
+    public synchronized void removePrecursor(String address) {
+        for (RouteEntry route : mRoutes.values()) route.precursors.remove(address);
+    }
+
+    /**
+     * Mark a route broken. The sequence number is incremented so older
+     * information about the destination is not accepted again.
+     * @return  The invalidated entry, or null if there was no usable route
+     */
+    public synchronized RouteEntry invalidate(String destination, long now) {
+        RouteEntry route = mRoutes.get(destination);
+        if (route == null || !route.valid) return null;
+        route.valid = false;
+        if (route.seq != MeshPacket.SEQ_UNKNOWN) route.seq++;
+        route.expiresAt = now + DELETE_PERIOD;
+        return route;
+    }
+
+    /**
+     * Mark every route through a neighbor broken, e.g. after the link to it failed.
+     * @return  The invalidated entries
+     */
+    public synchronized List<RouteEntry> invalidateNextHop(String nextHop, long now) {
+        ArrayList<RouteEntry> broken = new ArrayList<RouteEntry>();
+        for (RouteEntry route : mRoutes.values()) {
+            if (route.valid && nextHop.equals(route.nextHop)) {
+                route.valid = false;
+                if (route.seq != MeshPacket.SEQ_UNKNOWN) route.seq++;
+                route.expiresAt = now + DELETE_PERIOD;
+                broken.add(route);
+            }
+        }
+        return broken;
+    }
+
+    /**
+     * Expire stale routes and forget invalid ones after the delete period.
+     */
+    public synchronized void purge(long now) {
+        Iterator<RouteEntry> it = mRoutes.values().iterator();
+        while (it.hasNext()) {
+            RouteEntry route = it.next();
+            if (now < route.expiresAt) continue;
+            if (route.valid) {
+                route.valid = false;
+                route.expiresAt = now + DELETE_PERIOD;
+            } else {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Return a snapshot of all entries, for display and gossip.
+     */
+    public synchronized List<RouteEntry> getRoutes() {
+        return new ArrayList<RouteEntry>(mRoutes.values());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.Arrays;
+
+/**
+ * Remembers recently seen packets so each flooded copy is handled once.
+ * Keys are primitive longs kept in an open addressing table with linear
+ * probing; every key carries an expiry time and expired slots are reused
+ * or dropped when the table is rebuilt, so nothing is boxed or allocated
+ * per packet.
+ */
+public class SeenCache {
+    private final int mMaxCapacity;
+
+    private long[] mKeys;
+    // Expiry time per slot, 0 for a slot never used
+    private long[] mExpires;
+    // Slots in use, expired or not
+    private int mUsed;
+
+    /**
+     * @param initialCapacity  Slots to start with, rounded up to a power of two
+     * @param maxCapacity  Most slots the table grows to; when it is full the
+     *                     keys closest to expiry are forgotten first
+     */
+    public SeenCache(int initialCapacity, int maxCapacity) {
+        int capacity = powerOfTwo(initialCapacity);
+        mMaxCapacity = Math.max(powerOfTwo(maxCapacity), capacity);
+        mKeys = new long[capacity];
+        mExpires = new long[capacity];
+    }
+
+    /**
+     * Record a key.
+     * @param expiresAt  Time until which the key counts as seen; must be > 0
+     * @return  true if the key is new, false if it was seen and has not expired
+     */
+    public boolean add(long key, long expiresAt, long now) {
+        int mask = mKeys.length - 1;
+        int i = slot(key) & mask;
+        int free = -1;
+        while (mExpires[i] != 0) {
+            if (mKeys[i] == key) {
+                if (mExpires[i] > now) return false;
+                mExpires[i] = expiresAt;
+                return true;
+            }
+            if (free < 0 && mExpires[i] <= now) free = i;
+            i = (i + 1) & mask;
+        }
+        if (free >= 0) {
+            i = free;
+        } else {
+            mUsed++;
+        }
+        mKeys[i] = key;
+        mExpires[i] = expiresAt;
+        if (mUsed > mKeys.length / 4 * 3) rebuild(now);
+        return true;
+    }
+
+    /**
+     * Return true if the key was seen and has not expired.
+     */
+    public boolean contains(long key, long now) {
+        int mask = mKeys.length - 1;
+        for (int i = slot(key) & mask; mExpires[i] != 0; i = (i + 1) & mask) {
+            if (mKeys[i] == key) return mExpires[i] > now;
+        }
+        return false;
+    }
+
+    /**
+     * Return the number of keys that have not expired.
+     */
+    public int size(long now) {
+        int live = 0;
+        for (long expires : mExpires) {
+            if (expires > now) live++;
+        }
+        return live;
+    }
+
+    /**
+     * Drop expired keys, shrinking their probe chains.
+     */
+    public void purge(long now) {
+        if (size(now) < mUsed) rebuild(now);
+    }
+
+    // Re-insert the live keys into a table of a fitting size
+    private void rebuild(long now) {
+        long[] keys = mKeys;
+        long[] expires = mExpires;
+        int live = size(now);
+
+        long cutoff = now;
+        if (live > mMaxCapacity / 2) {
+            // Full: forget the half of the keys that expire first
+            long[] sorted = new long[live];
+            int n = 0;
+            for (long e : expires) {
+                if (e > now) sorted[n++] = e;
+            }
+            Arrays.sort(sorted);
+            cutoff = sorted[live / 2];
+            live -= live / 2;
+        }
+
+        int capacity = Math.min(Math.max(powerOfTwo(live * 2), 16), mMaxCapacity);
+        mKeys = new long[capacity];
+        mExpires = new long[capacity];
+        mUsed = 0;
+        int mask = capacity - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (expires[j] <= cutoff) continue;
+            int i = slot(keys[j]) & mask;
+            while (mExpires[i] != 0) i = (i + 1) & mask;
+            mKeys[i] = keys[j];
+            mExpires[i] = expires[j];
+            mUsed++;
+        }
+    }
+
+    private static int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static int powerOfTwo(int n) {
+        int capacity = 1;
+        while (capacity < n) capacity <<= 1;
+        return capacity;
+    }
+}
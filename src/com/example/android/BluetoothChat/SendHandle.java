@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+
+/**
+ * The handle of one frame handed to {@link BluetoothChatService#send}.
+ * send() returns at once; the frame is written later by the link's writer
+ * thread, and the handle then completes as sent or failed.
+ */
+public class SendHandle {
+    /**
+     * Told when a send completes. Called on the link's writer thread, so
+     * implementations must not block and must post any UI work.
+     */
+    public interface Callback {
+        void onSendComplete(SendHandle handle);
+    }
+
+    private final String mAddress;
+    private final int mType;
+    private final byte[] mData;
+    private final Callback mCallback;
+    private boolean mDone;
+    private IOException mError;
+
+    SendHandle(String address, int type, byte[] data, Callback callback) {
+        mAddress = address;
+        mType = type;
+        mData = data;
+        mCallback = callback;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return the frame type, Frame.TYPE_*.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Return the payload, e.g. to keep a failed packet for later.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Return true if the frame was written to the link.
+     */
+    public synchronized boolean isSent() {
+        return mDone && mError == null;
+    }
+
+    /**
+     * Return why the send failed, or null.
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Wait until the send completes. Never call this on the main thread.
+     * @param timeout  Longest wait in ms
+     * @return  true if the send completed
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mDone) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Complete the send, once; the callback runs on the calling thread.
+     * @param error  null if the frame was written
+     */
+    void complete(IOException error) {
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+            mError = error;
+            notifyAll();
+        }
+        if (mCallback != null) mCallback.onSendComplete(this);
+    }
+}
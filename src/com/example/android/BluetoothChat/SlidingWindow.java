@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The sending half of the fragment protocol of a link. A message too big
+ * for one frame is cut into fragments of at most fragmentSize bytes, each
+ * sent as a Frame.TYPE_FRAGMENT frame with this header in front:
+ * <pre>
+ *   seq      4 bytes  per-link fragment sequence number
+ *   message  4 bytes  per-link message id
+ *   total    4 bytes  length of the whole message
+ *   offset   4 bytes  where the fragment's bytes go in the message
+ *   type     1 byte   frame type of the whole message, Frame.TYPE_*
+ * </pre>
+ * Up to window fragments are sent ahead of the acks, so the link stays
+ * busy while they come back. A Frame.TYPE_ACK frame carries the next
+ * sequence number the peer expects and a bitmap of the 32 after it that
+ * it already holds:
+ * <pre>
+ *   cumulative  4 bytes  every fragment before this one arrived
+ *   selective   4 bytes  bit i set: fragment cumulative + 1 + i arrived
+ * </pre>
+ * A fragment neither acked nor marked in the bitmap within the timeout is
+ * sent again; the peer drops fragments when it runs out of reassembly
+ * memory. Messages are sent one after another in the order added.
+ * <p>
+ * Not thread safe; a link's writer task owns its window.
+ * @see Reassembler
+ */
+public class SlidingWindow {
+    public static final int HEADER_SIZE = 17;
+    public static final int ACK_SIZE = 8;
+    // The selective bitmap covers this many fragments past the cumulative ack
+    public static final int MAX_WINDOW = 32;
+
+    private final int mWindow;
+    private final int mFragmentSize;
+    private final long mTimeout;
+    private final int mMaxRetries;
+    // Messages that still have fragments to send, oldest first
+    private final LinkedList<Outgoing> mMessages = new LinkedList<Outgoing>();
+    // Sent and not yet acked fragments, at seq % MAX_WINDOW
+    private final Fragment[] mInFlight = new Fragment[MAX_WINDOW];
+    // Oldest fragment not acked, and the sequence number of the next new one
+    private int mBase;
+    private int mNext;
+    private int mNextMessageId;
+
+    private static class Outgoing {
+        final SendHandle handle;
+        final int id;
+        // Bytes cut into fragments so far
+        int sent;
+        // Fragments sent and not acked yet
+        int unacked;
+
+        Outgoing(SendHandle handle, int id) {
+            this.handle = handle;
+            this.id = id;
+        }
+
+        boolean isDone() {
+            return sent == handle.getData().length && unacked == 0;
+        }
+    }
+
+    private static class Fragment {
+        final Outgoing message;
+        final int seq;
+        final int offset;
+        final int length;
+        long sentAt;
+        int retries;
+        boolean acked;
+
+        Fragment(Outgoing message, int seq, int offset, int length) {
+            this.message = message;
+            this.seq = seq;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param window  Most fragments in flight, at most MAX_WINDOW
+     * @param fragmentSize  Most message bytes per fragment
+     * @param timeout  Time in ms after which an unacked fragment is sent again
+     * @param maxRetries  Resends of one fragment before the link is given up
+     */
+    public SlidingWindow(int window, int fragmentSize, long timeout, int maxRetries) {
+        if (window < 1 || window > MAX_WINDOW) throw new IllegalArgumentException("window " + window);
+        mWindow = window;
+        mFragmentSize = fragmentSize;
+        mTimeout = timeout;
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Queue a message. Its handle is returned by onAck() once the peer
+     * has every fragment.
+     */
+    public void add(SendHandle handle) {
+        mMessages.add(new Outgoing(handle, mNextMessageId++));
+    }
+
+    /**
+     * Return true if no message is being sent.
+     */
+    public boolean isIdle() {
+        return mMessages.isEmpty() && mBase == mNext;
+    }
+
+    /**
+     * Return how long the caller may wait before calling nextFragment():
+     * 0 if a fragment can be sent now, the time until the next resend is
+     * due, or -1 if only an ack can make progress.
+     */
+    public long getWait(long now) {
+        if (!mMessages.isEmpty() && mNext - mBase < mWindow) return 0;
+        long wait = -1;
+        for (int seq = mBase; seq != mNext; seq++) {
+            Fragment f = mInFlight[slot(seq)];
+            if (f.acked) continue;
+            long left = Math.max(0, f.sentAt + mTimeout - now);
+            if (wait < 0 || left < wait) wait = left;
+        }
+        return wait;
+    }
+
+    /**
+     * Return the next fragment to write, header included: a resend that
+     * is due, else a new one if the window has room, else null.
+     * @throws IOException  if a fragment was resent maxRetries times
+     */
+    public byte[] nextFragment(long now) throws IOException {
+        for (int seq = mBase; seq != mNext; seq++) {
+            Fragment f = mInFlight[slot(seq)];
+            if (f.acked || now - f.sentAt < mTimeout) continue;
+            if (++f.retries > mMaxRetries) {
+                throw new IOException("fragment " + f.seq + " not acknowledged");
+            }
+            f.sentAt = now;
+            return encode(f);
+        }
+
+        if (mMessages.isEmpty() || mNext - mBase >= mWindow) return null;
+        Outgoing message = mMessages.getFirst();
+        int length = Math.min(mFragmentSize, message.handle.getData().length - message.sent);
+        Fragment f = new Fragment(message, mNext, message.sent, length);
+        mInFlight[slot(mNext++)] = f;
+        message.sent += length;
+        message.unacked++;
+        if (message.sent == message.handle.getData().length) mMessages.removeFirst();
+        f.sentAt = now;
+        return encode(f);
+    }
+
+    /**
+     * Apply an ack from the peer.
+     * @return  The handles of the messages the peer now holds completely
+     */
+    public List<SendHandle> onAck(byte[] buffer, int offset, int length) throws IOException {
+        if (length != ACK_SIZE) throw new IOException("bad ack length " + length);
+        int cumulative = Frame.readInt(buffer, offset);
+        int selective = Frame.readInt(buffer, offset + 4);
+        if (cumulative - mNext > 0) throw new IOException("ack " + cumulative + " for unsent fragment");
+
+        List<SendHandle> done = new ArrayList<SendHandle>();
+        for (int seq = mBase; seq != mNext; seq++) {
+            Fragment f = mInFlight[slot(seq)];
+            if (f.acked) continue;
+            int d = seq - cumulative;
+            if (d < 0 || d > 0 && d <= 32 && (selective & 1 << (d - 1)) != 0) {
+                f.acked = true;
+                f.message.unacked--;
+                if (f.message.isDone()) done.add(f.message.handle);
+            }
+        }
+        while (mBase != mNext && mInFlight[slot(mBase)].acked) {
+            mInFlight[slot(mBase++)] = null;
+        }
+        return done;
+    }
+
+    /**
+     * Drop every message that is not completely acked.
+     * @return  Their handles, to be failed by the caller
+     */
+    public List<SendHandle> clear() {
+        List<SendHandle> pending = new ArrayList<SendHandle>();
+        for (int seq = mBase; seq != mNext; seq++) {
+            Outgoing message = mInFlight[slot(seq)].message;
+            if (!pending.contains(message.handle)) pending.add(message.handle);
+        }
+        for (Outgoing message : mMessages) {
+            if (!pending.contains(message.handle)) pending.add(message.handle);
+        }
+        mMessages.clear();
+        for (int i = 0; i < mInFlight.length; i++) mInFlight[i] = null;
+        mBase = mNext;
+        return pending;
+    }
+
+    private static int slot(int seq) {
+        // MAX_WINDOW is a power of two, so this stays right as seq wraps
+        return seq & (MAX_WINDOW - 1);
+    }
+
+    private byte[] encode(Fragment f) {
+        byte[] data = f.message.handle.getData();
+        byte[] fragment = new byte[HEADER_SIZE + f.length];
+        Frame.writeInt(fragment, 0, f.seq);
+        Frame.writeInt(fragment, 4, f.message.id);
+        Frame.writeInt(fragment, 8, data.length);
+        Frame.writeInt(fragment, 12, f.offset);
+        fragment[16] = (byte) f.message.handle.getType();
+        System.arraycopy(data, f.offset, fragment, HEADER_SIZE, f.length);
+        return fragment;
+    }
+}
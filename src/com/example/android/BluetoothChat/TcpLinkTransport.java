@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * LinkTransport over loopback TCP. Links are addressed as "host:port".
+ * Gives BluetoothChatService a real kernel socket to run against, with
+ * its buffering and scheduling, when measuring it on a desktop box.
+ * <p>
+ * An accepted socket comes from an ephemeral port, so the connecting end
+ * first sends the address it listens on; the accepted link reports that
+ * one, and links in both directions between two nodes share an address.
+ */
+public class TcpLinkTransport implements LinkTransport {
+    // Longest wait for the listen address of an accepted socket
+    private static final int HANDSHAKE_TIMEOUT = 5 * 1000;
+
+    private final int mPort;
+    // Address our server listens on, sent when connecting; "" before listen()
+    private volatile String mListenAddress = "";
+
+    /**
+     * @param port  Local port to listen on, or 0 for an ephemeral port
+     */
+    public TcpLinkTransport(int port) {
+        mPort = port;
+    }
+
+    public LinkServer listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort));
+        TcpServer server = new TcpServer(serverSocket);
+        mListenAddress = server.getAddress();
+        return server;
+    }
+
+    public Link createLink(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) throw new IOException("bad address: " + address);
+        String host = address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad address: " + address);
+        }
+        return new TcpLink(new Socket(), new InetSocketAddress(host, port), mListenAddress, address);
+    }
+
+    /**
+     * A listening loopback socket.
+     */
+    public static class TcpServer implements LinkServer {
+        private final ServerSocket mmServerSocket;
+
+        TcpServer(ServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        /**
+         * Return the address clients should connect to, useful when the
+         * transport was created with an ephemeral port.
+         */
+        public String getAddress() {
+            return "127.0.0.1:" + mmServerSocket.getLocalPort();
+        }
+
+        public Link accept() throws IOException {
+            while (true) {
+                Socket socket = mmServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+                String address;
+                try {
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                    address = new DataInputStream(socket.getInputStream()).readUTF();
+                    socket.setSoTimeout(0);
+                } catch (IOException e) {
+                    // A peer that does not introduce itself is not taken
+                    socket.close();
+                    continue;
+                }
+                // A peer without a server of its own keeps its socket address
+                if (address.length() == 0) {
+                    address = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+                }
+                return new TcpLink(socket, remote, null, address);
+            }
+        }
+
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+    private static class TcpLink implements Link {
+        private final Socket mmSocket;
+        private final SocketAddress mmRemote;
+        // Listen address sent to the peer on connect, null for accepted links
+        private final String mmLocalAddress;
+        private final String mmRemoteAddress;
+
+        TcpLink(Socket socket, SocketAddress remote, String localAddress, String remoteAddress) {
+            mmSocket = socket;
+            mmRemote = remote;
+            mmLocalAddress = localAddress;
+            mmRemoteAddress = remoteAddress;
+        }
+
+        public void connect() throws IOException {
+            if (mmSocket.isConnected()) return;
+            mmSocket.connect(mmRemote);
+            // Chat traffic is many small writes, do not let Nagle hold them back
+            mmSocket.setTcpNoDelay(true);
+            new DataOutputStream(mmSocket.getOutputStream()).writeUTF(mmLocalAddress);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return mmRemoteAddress;
+        }
+
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
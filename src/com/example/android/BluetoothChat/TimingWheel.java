@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import android.util.Log;
+
+/**
+ * A hierarchical timing wheel: one thread runs any number of timers, and
+ * scheduling or cancelling one is O(1) whatever the number pending.
+ * <p>
+ * Time advances in ticks. The first level has a slot for each of the
+ * next ROOT_SIZE ticks; every further level has LEVEL_SIZE slots, each
+ * covering a whole turn of the level below. A timer goes into the slot
+ * of the lowest level that reaches its deadline, and when a lower level
+ * wraps around the next slot of the level above is cascaded down into it.
+ * Timers are chained into their slot through links of their own, so a
+ * timer costs one object and nothing is searched or sorted. The thread
+ * only wakes for ticks that have timers due and for the cascades.
+ * <p>
+ * Tasks run on the wheel's thread, one after another; they must be short
+ * and must not block. Timers scheduled while the thread is stopped wait
+ * and run, late, once it is started again.
+ */
+public class TimingWheel {
+    private static final String TAG = "TimingWheel";
+
+    private static final int ROOT_BITS = 8;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int ROOT_MASK = ROOT_SIZE - 1;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    // Longest delay in ticks; later deadlines wait in the last level and
+    // are cascaded again until they are in reach
+    private static final long MAX_TICKS = (1L << (ROOT_BITS + (LEVELS - 1) * LEVEL_BITS)) - 1;
+    // Slot of the timers taken off the wheel that wait for the thread
+    private static final int EXPIRED = ROOT_SIZE + (LEVELS - 1) * LEVEL_SIZE;
+    private static final int NONE = -1;
+
+    /**
+     * A scheduled task, returned by schedule() to cancel it.
+     */
+    public class Timeout {
+        private final Runnable mmTask;
+        // Tick at which the task is due
+        private long mmDeadline;
+        private int mmSlot = NONE;
+        private Timeout mmPrev;
+        private Timeout mmNext;
+
+        Timeout(Runnable task) {
+            mmTask = task;
+        }
+
+        /**
+         * Cancel the task if it has not started yet.
+         * @return  false if it ran, is running or was cancelled already
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (mmSlot == NONE) return false;
+                unlink(this);
+                return true;
+            }
+        }
+
+        public boolean isPending() {
+            synchronized (TimingWheel.this) {
+                return mmSlot != NONE;
+            }
+        }
+    }
+
+    private final String mName;
+    private final long mTick;
+    private final long mOrigin = now();
+    // Empty list heads of the slots of all levels, then EXPIRED
+    private final Timeout[] mSlots = new Timeout[EXPIRED + 1];
+    // Next tick to process; every timer due before it has been taken off
+    private long mCurrent;
+    // Timers on the wheel, and those of them in the first level
+    private int mCount;
+    private int mRootCount;
+    // Tick the waiting thread wakes up at, Long.MIN_VALUE while it runs
+    private long mWakeup = Long.MIN_VALUE;
+    private Thread mThread;
+
+    /**
+     * @param name  Name of the thread
+     * @param tick  Length of a tick in ms; a timer runs at most this late
+     */
+    public TimingWheel(String name, long tick) {
+        mName = name;
+        mTick = tick;
+        for (int i = 0; i < mSlots.length; i++) {
+            Timeout head = new Timeout(null);
+            head.mmPrev = head;
+            head.mmNext = head;
+            mSlots[i] = head;
+        }
+    }
+
+    /**
+     * Start the thread, if it is not running.
+     */
+    public synchronized void start() {
+        if (mThread != null) return;
+        mThread = new Thread(mLoop, mName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Let the thread exit once the task it runs, if any, has returned.
+     * Pending timers are kept.
+     */
+    public synchronized void stop() {
+        mThread = null;
+        notify();
+    }
+
+    /**
+     * Run a task once after a delay.
+     * @param delay  Delay in ms; the task runs after it, within one tick
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task);
+        long now = now();
+        synchronized (this) {
+            // Round up: the task never runs early
+            timeout.mmDeadline = (now - mOrigin + Math.max(delay, 0) + mTick - 1) / mTick;
+            add(timeout);
+            if (timeout.mmDeadline < mWakeup) notify();
+        }
+        return timeout;
+    }
+
+    private final Runnable mLoop = new Runnable() {
+        public void run() {
+            while (true) {
+                Timeout timeout;
+                synchronized (TimingWheel.this) {
+                    if (mThread != Thread.currentThread()) return;
+                    timeout = first(EXPIRED);
+                    if (timeout != null) {
+                        unlink(timeout);
+                    } else {
+                        long ticks = (now() - mOrigin) / mTick;
+                        if (ticks >= mCurrent) {
+                            advance(ticks);
+                        } else {
+                            waitFor(nextTick());
+                        }
+                        continue;
+                    }
+                }
+                try {
+                    timeout.mmTask.run();
+                } catch (RuntimeException e) {
+                    // As with an executor, a failing task does not stop the others
+                    Log.e(TAG, "timer task failed", e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Take every timer due up to a tick off the wheel.
+     */
+    private void advance(long ticks) {
+        while (mCurrent <= ticks) {
+            int index = (int) (mCurrent & ROOT_MASK);
+            // Refill the first level from the next slot of the second, and so
+            // on up while a level wraps around as well
+            if (index == 0) {
+                for (int level = 1; level < LEVELS; level++) {
+                    if (cascade(level) != 0) break;
+                }
+            }
+            Timeout head = mSlots[index];
+            while (head.mmNext != head) {
+                Timeout timeout = head.mmNext;
+                unlink(timeout);
+                link(timeout, EXPIRED);
+            }
+            mCurrent++;
+            if (mRootCount == 0) {
+                // Nothing in the first level: skip to its next turn
+                mCurrent = Math.min(ticks + 1, (mCurrent + ROOT_MASK) & ~(long) ROOT_MASK);
+            }
+        }
+    }
+
+    /**
+     * Move the timers of the current slot of a level down to the levels below.
+     * @return  The index of the slot
+     */
+    private int cascade(int level) {
+        int shift = ROOT_BITS + (level - 1) * LEVEL_BITS;
+        int index = (int) ((mCurrent >> shift) & LEVEL_MASK);
+        Timeout head = mSlots[ROOT_SIZE + (level - 1) * LEVEL_SIZE + index];
+        // The slot may receive timers again, so detach them all first
+        Timeout first = head.mmNext;
+        Timeout last = head.mmPrev;
+        if (first == head) return index;
+        head.mmNext = head;
+        head.mmPrev = head;
+        last.mmNext = null;
+        while (first != null) {
+            Timeout next = first.mmNext;
+            mCount--;
+            add(first);
+            first = next;
+        }
+        return index;
+    }
+
+    /**
+     * Wait until a tick or until a timer is scheduled before it.
+     */
+    private void waitFor(long tick) {
+        mWakeup = tick;
+        try {
+            if (tick == Long.MAX_VALUE) {
+                wait();
+            } else {
+                long delay = mOrigin + tick * mTick - now();
+                if (delay > 0) wait(delay);
+            }
+        } catch (InterruptedException e) {
+            // Check the wheel again
+        } finally {
+            mWakeup = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return  The next tick with timers due or a cascade to do,
+     *          Long.MAX_VALUE if the wheel is empty
+     */
+    private long nextTick() {
+        long next = Long.MAX_VALUE;
+        if (mRootCount > 0) {
+            // Every timer of the first level is due within one turn of it
+            for (long tick = mCurrent; tick < mCurrent + ROOT_SIZE; tick++) {
+                if (first((int) (tick & ROOT_MASK)) != null) {
+                    next = tick;
+                    break;
+                }
+            }
+        }
+        // Timers of the upper levels need the cascade at the next turn
+        if (mCount > mRootCount) next = Math.min(next, (mCurrent + ROOT_MASK) & ~(long) ROOT_MASK);
+        return next;
+    }
+
+    /**
+     * Put a timer into the slot that holds its deadline.
+     */
+    private void add(Timeout timeout) {
+        long deadline = timeout.mmDeadline;
+        long ticks = deadline - mCurrent;
+        int slot;
+        if (ticks < ROOT_SIZE) {
+            // Overdue timers go into the next slot to process
+            slot = (int) ((ticks < 0 ? mCurrent : deadline) & ROOT_MASK);
+        } else {
+            if (ticks > MAX_TICKS) deadline = mCurrent + MAX_TICKS;
+            int level = 1;
+            while (level < LEVELS - 1 && ticks >= 1L << (ROOT_BITS + level * LEVEL_BITS)) level++;
+            int shift = ROOT_BITS + (level - 1) * LEVEL_BITS;
+            slot = ROOT_SIZE + (level - 1) * LEVEL_SIZE + (int) ((deadline >> shift) & LEVEL_MASK);
+        }
+        link(timeout, slot);
+        mCount++;
+        if (slot < ROOT_SIZE) mRootCount++;
+    }
+
+    private void link(Timeout timeout, int slot) {
+        Timeout head = mSlots[slot];
+        timeout.mmPrev = head.mmPrev;
+        timeout.mmNext = head;
+        head.mmPrev.mmNext = timeout;
+        head.mmPrev = timeout;
+        timeout.mmSlot = slot;
+    }
+
+    private void unlink(Timeout timeout) {
+        timeout.mmPrev.mmNext = timeout.mmNext;
+        timeout.mmNext.mmPrev = timeout.mmPrev;
+        timeout.mmPrev = null;
+        timeout.mmNext = null;
+        if (timeout.mmSlot != EXPIRED) {
+            mCount--;
+            if (timeout.mmSlot < ROOT_SIZE) mRootCount--;
+        }
+        timeout.mmSlot = NONE;
+    }
+
+    private Timeout first(int slot) {
+        Timeout head = mSlots[slot];
+        return head.mmNext == head ? null : head.mmNext;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
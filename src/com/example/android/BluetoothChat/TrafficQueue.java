@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The send queue of one link, split into traffic classes so that routing
+ * control never waits behind bulk data:
+ * <ul>
+ * <li>CLASS_CONTROL (route discovery and errors, link control) always
+ *     goes first;
+ * <li>CLASS_INTERACTIVE (chat messages) and CLASS_BULK (file chunks and
+ *     fragmented messages) share the rest by weight: while both have
+ *     frames waiting, bulk gets at most bulkWeight / (interactiveWeight +
+ *     bulkWeight) of the bytes. A class alone on the link gets all of it.
+ * </ul>
+ * Frames of one class keep their order. Besides its queued frames, the
+ * bulk class also takes turns for the fragments of a {@link SlidingWindow}
+ * that the caller says are ready.
+ */
+public class TrafficQueue {
+    public static final int CLASS_CONTROL = 0;
+    public static final int CLASS_INTERACTIVE = 1;
+    public static final int CLASS_BULK = 2;
+
+    /**
+     * Returned by take() when it is the bulk class's turn to send a fragment.
+     */
+    public static final SendHandle FRAGMENT = new SendHandle(null, 0, null, null);
+
+    private final int mInteractiveWeight;
+    private final int mBulkWeight;
+    private final LinkedList<SendHandle> mControl = new LinkedList<SendHandle>();
+    private final LinkedList<SendHandle> mInteractive = new LinkedList<SendHandle>();
+    private final LinkedList<SendHandle> mBulk = new LinkedList<SendHandle>();
+    private boolean mClosed;
+    // Bytes each class sent since both last had frames waiting
+    private long mInteractiveSent;
+    private long mBulkSent;
+    // Alternates bulk turns between queued frames and fragments
+    private boolean mFragmentNext;
+
+    public TrafficQueue(int interactiveWeight, int bulkWeight) {
+        mInteractiveWeight = interactiveWeight;
+        mBulkWeight = bulkWeight;
+    }
+
+    /**
+     * Queue a frame, unless the queue was closed.
+     * @return  false if the queue is closed
+     */
+    public synchronized boolean offer(int trafficClass, SendHandle handle) {
+        if (mClosed) return false;
+        queue(trafficClass).add(handle);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Take the next frame to write, waiting for one if there is none.
+     * @param fragmentSize  Size of the fragment that could be sent now, or 0
+     * @param timeout  Longest wait in ms, or -1 to wait for as long as it takes
+     * @return  A queued frame, FRAGMENT, or null if the wait timed out
+     */
+    public synchronized SendHandle take(int fragmentSize, long timeout) throws InterruptedException {
+        if (fragmentSize == 0 && timeout != 0) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (isEmpty()) {
+                if (timeout < 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) return null;
+                    wait(left);
+                }
+            }
+        }
+        if (!mControl.isEmpty()) return mControl.removeFirst();
+
+        boolean interactive = !mInteractive.isEmpty();
+        boolean bulk = !mBulk.isEmpty() || fragmentSize > 0;
+        if (!interactive && !bulk) return null;
+        if (!interactive || !bulk) {
+            // No contention, nothing to catch up on later
+            mInteractiveSent = 0;
+            mBulkSent = 0;
+        }
+        if (interactive && (!bulk || mBulkSent * mInteractiveWeight >= mInteractiveSent * mBulkWeight)) {
+            SendHandle handle = mInteractive.removeFirst();
+            mInteractiveSent += size(handle);
+            return handle;
+        }
+
+        boolean fragment = fragmentSize > 0 && (mBulk.isEmpty() || mFragmentNext);
+        mFragmentNext = !fragment;
+        if (fragment) {
+            mBulkSent += fragmentSize;
+            return FRAGMENT;
+        }
+        SendHandle handle = mBulk.removeFirst();
+        mBulkSent += size(handle);
+        return handle;
+    }
+
+    /**
+     * Return the number of frames waiting in a class.
+     */
+    public synchronized int size(int trafficClass) {
+        return queue(trafficClass).size();
+    }
+
+    /**
+     * Refuse further frames.
+     * @return  The frames still queued, to be failed by the caller
+     */
+    public synchronized List<SendHandle> close() {
+        mClosed = true;
+        List<SendHandle> left = new ArrayList<SendHandle>(mControl);
+        left.addAll(mInteractive);
+        left.addAll(mBulk);
+        mControl.clear();
+        mInteractive.clear();
+        mBulk.clear();
+        return left;
+    }
+
+    private boolean isEmpty() {
+        return mControl.isEmpty() && mInteractive.isEmpty() && mBulk.isEmpty();
+    }
+
+    private LinkedList<SendHandle> queue(int trafficClass) {
+        switch (trafficClass) {
+        case CLASS_CONTROL:
+            return mControl;
+        case CLASS_INTERACTIVE:
+            return mInteractive;
+        default:
+            return mBulk;
+        }
+    }
+
+    private static int size(SendHandle handle) {
+        byte[] data = handle.getData();
+        // Count the frame header too, so tiny frames are not free
+        return (data == null ? 0 : data.length) + Frame.HEADER_SIZE;
+    }
+}